@@ -53,6 +53,7 @@ public class AppConstants {
 
   public static final int THUMB_SIZE = 100;
   public static final int MAX_RECENT_SIZE = 10;
+  public static final int DEFAULT_OVERLAY_CACHE_SIZE = 256; // MB, never more than 1/4 of the heap
 
   // UI Defaults
   public static final boolean DEFAULT_OVERLAY_ASPECT = true;
@@ -66,6 +66,9 @@ public class AppPreferences {
   public static final String LAST_BACKGROUND_IMAGE_FILE = "lastBackgroundImageFile";
   public static final String LAST_PORTRAIT_IMAGE_FILE = "lastPortraitImageFile";
 
+  // Memory budget in MB for decoded overlays kept in memory
+  public static final String OVERLAY_CACHE_SIZE = "overlayCacheSize";
+
   private static final String PORTRAIT_TRANSPARENCY = "portraitTransparency";
   private static final String PORTRAIT_BLUR = "portraitBlur";
   private static final String PORTRAIT_GLOW = "portraitGlow";
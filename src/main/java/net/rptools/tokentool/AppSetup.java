@@ -18,7 +18,6 @@
 import java.io.IOException;
 import java.net.URL;
 import java.nio.charset.Charset;
-import java.util.Collection;
 import java.util.Set;
 import java.util.regex.Pattern;
 import javafx.application.Platform;
@@ -26,9 +25,8 @@
 import javafx.scene.control.Alert.AlertType;
 import net.rptools.tokentool.client.TokenTool;
 import net.rptools.tokentool.util.I18N;
-import net.rptools.tokentool.util.ImageUtil;
+import net.rptools.tokentool.util.OverlayManifest;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
@@ -54,10 +52,15 @@ public static void install(String versionString) {
     log = LogManager.getLogger(AppSetup.class);
 
     File overlayVerFile = new File(getAppHome().getAbsolutePath() + "/version.txt");
-    Collection<File> existingOverLays =
-        FileUtils.listFiles(
-            AppConstants.OVERLAY_DIR, ImageUtil.SUPPORTED_FILE_FILTER, TrueFileFilter.INSTANCE);
-    log.info("Overlays installed: " + existingOverLays.size());
+
+    // This scan is shared with the overlay cache and tree so the overlays are only walked once
+    int existingOverlays = 0;
+    try {
+      existingOverlays = OverlayManifest.scan(AppConstants.OVERLAY_DIR).getOverlayCount();
+    } catch (IOException e) {
+      log.error("Error scanning installed overlays...", e);
+    }
+    log.info("Overlays installed: " + existingOverlays);
 
     // Only install overlays once or if version.text is missing or version is newer
     // Overlays are stored in a version packaged structure so we can later install only newer
@@ -73,9 +76,10 @@ public static void install(String versionString) {
       log.error(ioe);
     }
 
-    if (existingOverLays.isEmpty()) {
+    if (existingOverlays == 0) {
       try {
         installDefaultOverlays();
+        OverlayManifest.scan(AppConstants.OVERLAY_DIR);
       } catch (IOException e) {
         log.error("Error installing overlays upon detecting no overlays are installed...", e);
       }
@@ -83,7 +87,10 @@ public static void install(String versionString) {
       log.info("New version detected.");
 
       try {
-        confirmInstallOverlays(installNewOverlays(installedVersion));
+        int overlaysInstalled = installNewOverlays(installedVersion);
+        if (overlaysInstalled > 0) OverlayManifest.scan(AppConstants.OVERLAY_DIR);
+
+        confirmInstallOverlays(overlaysInstalled);
       } catch (IOException e) {
         log.error("Error installing overlays upon detecting a new version installed...", e);
       }
@@ -62,7 +62,7 @@ public void handle(WindowEvent event) {
                   AppPreferences.WINDOW_MANAGE_OVERLAYS_PREFERENCES,
                   new Window_Preferences(stage).toJson());
               stage.hide();
-              tokenTool_Controller.refreshCache();
+              if (!tokenTool_Controller.isWatchingOverlays()) tokenTool_Controller.refreshCache();
             }
           });
 
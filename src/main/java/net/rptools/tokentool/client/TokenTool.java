@@ -15,11 +15,8 @@
 package net.rptools.tokentool.client;
 
 import io.sentry.Sentry;
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Comparator;
 import java.util.ResourceBundle;
 import javafx.application.Application;
 import javafx.application.ConditionalFeature;
@@ -29,7 +26,6 @@
 import javafx.scene.Scene;
 import javafx.scene.control.TreeItem;
 import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
 import javafx.stage.Stage;
 import javax.imageio.spi.IIORegistry;
@@ -37,8 +33,12 @@
 import net.rptools.tokentool.AppPreferences;
 import net.rptools.tokentool.AppSetup;
 import net.rptools.tokentool.controller.TokenTool_Controller;
+import net.rptools.tokentool.model.OverlayTreeItem;
 import net.rptools.tokentool.util.I18N;
-import net.rptools.tokentool.util.ImageUtil;
+import net.rptools.tokentool.util.LegacyOverlayCache;
+import net.rptools.tokentool.util.OverlayManifest;
+import net.rptools.tokentool.util.OverlayThumbnailCache;
+import net.rptools.tokentool.util.OverlayThumbnailLoader;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -68,10 +68,7 @@ public class TokenTool extends Application {
   private static String VERSION = "";
   private static String VENDOR = "";
 
-  private static final int THUMB_SIZE = 100;
-
   private static int overlayCount = 0;
-  private static int loadCount = 1;
 
   private static TreeItem<Path> overlayTreeItems;
   private static Stage stage;
@@ -109,10 +106,26 @@ public void init() throws Exception {
     log.info("OS: " + ThreadContext.get("OS"));
     log.info("3D Hardware Available? " + Platform.isSupported(ConditionalFeature.SCENE3D));
 
-    // Now lets cache any overlays we find and update preLoader with progress
-    overlayCount =
-        (int) Files.walk(AppConstants.OVERLAY_DIR.toPath()).filter(Files::isRegularFile).count();
-    overlayTreeItems = cacheOverlays(AppConstants.OVERLAY_DIR, null, THUMB_SIZE);
+    // Now lets cache any overlays we find and update preLoader with progress, the installer
+    // already scanned the overlay directory
+    OverlayManifest overlayManifest = OverlayManifest.getCurrent();
+    overlayCount = overlayManifest.getOverlayCount();
+
+    // Drop thumbnails and split legacy layers for overlays that were removed or changed since the
+    // last run, and any files a crash left half written, before anything writes to the caches
+    OverlayThumbnailCache.evictStale(overlayManifest);
+    LegacyOverlayCache.evictStale(overlayManifest);
+
+    new OverlayThumbnailLoader(
+            overlayCount, progress -> notifyPreloader(new Preloader.ProgressNotification(progress)))
+        .load(overlayManifest);
+
+    // The tree only lists directories as they are expanded, thumbnails load as cells are shown
+    overlayTreeItems = new OverlayTreeItem(AppConstants.OVERLAY_DIR, true);
+
+    // Pack any new thumbnails into the atlas and persist the index
+    OverlayThumbnailCache.compact();
+    OverlayThumbnailCache.saveIndex();
 
     // All Done!
     notifyPreloader(new Preloader.ProgressNotification(1.0));
@@ -176,57 +189,6 @@ public Stage getStage() {
     return stage;
   }
 
-  /**
-   * @author Jamz
-   * @throws IOException
-   * @since 2.0
-   *     <p>This method loads and processes all the overlays found in user.home/overlays and it can
-   *     take a minute to load as it creates thumbnail versions for the comboBox so we call this
-   *     during the init and display progress in the preLoader (splash screen).
-   */
-  private TreeItem<Path> cacheOverlays(File dir, TreeItem<Path> parent, int THUMB_SIZE)
-      throws IOException {
-    TreeItem<Path> root = new TreeItem<>(dir.toPath());
-    root.setExpanded(false);
-
-    log.debug("caching " + dir.getAbsolutePath());
-
-    File[] files = dir.listFiles();
-    for (File file : files) {
-      if (file.isDirectory()) {
-        cacheOverlays(file, root, THUMB_SIZE);
-      } else {
-        Path filePath = file.toPath();
-        TreeItem<Path> imageNode =
-            new TreeItem<>(filePath, ImageUtil.getOverlayThumb(new ImageView(), filePath));
-        root.getChildren().add(imageNode);
-
-        notifyPreloader(new Preloader.ProgressNotification((double) loadCount++ / overlayCount));
-      }
-    }
-
-    if (parent != null) {
-      // When we show the overlay image, the TreeItem value is "" so we need to
-      // sort those to the bottom for a cleaner look and keep sub dir's at the top.
-      // If a node has no children then it's an overlay, otherwise it's a directory...
-      root.getChildren()
-          .sort(
-              new Comparator<TreeItem<Path>>() {
-                @Override
-                public int compare(TreeItem<Path> o1, TreeItem<Path> o2) {
-                  if (o1.getChildren().size() == 0 && o2.getChildren().size() == 0) return 0;
-                  else if (o1.getChildren().size() == 0) return Integer.MAX_VALUE;
-                  else if (o2.getChildren().size() == 0) return Integer.MIN_VALUE;
-                  else return o1.getValue().compareTo(o2.getValue());
-                }
-              });
-
-      parent.getChildren().add(root);
-    }
-
-    return root;
-  }
-
   public static String getVersion() {
     if (!VERSION.isEmpty()) return VERSION;
 
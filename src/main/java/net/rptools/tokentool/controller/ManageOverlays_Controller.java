@@ -53,10 +53,12 @@
 import javax.imageio.ImageIO;
 import net.rptools.tokentool.AppConstants;
 import net.rptools.tokentool.AppSetup;
+import net.rptools.tokentool.model.OverlayAsset;
 import net.rptools.tokentool.model.OverlayTreeItem;
 import net.rptools.tokentool.util.FileSaveUtil;
 import net.rptools.tokentool.util.I18N;
 import net.rptools.tokentool.util.ImageUtil;
+import net.rptools.tokentool.util.OverlayAssetCache;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
@@ -270,17 +272,19 @@ public void handle(MouseEvent event) {
 
   private void updateDetails(File overlayFile, ImageView overlayImage, boolean selected) {
     if (selected) {
-      int w = (int) overlayImage.getImage().getWidth();
-      int h = (int) overlayImage.getImage().getHeight();
-
       overlayName.setText(FilenameUtils.getBaseName(overlayFile.getName()));
       overlayDescription.setText(ImageUtil.getFileType(overlayFile));
-      overlayDimensions.setText(w + " x " + h);
-      overlayLayerImage.setImage(overlayImage.getImage());
-      ;
 
       try {
-        overlayLayerMask = ImageUtil.getMaskImage(overlayLayerMask, overlayFile.toPath());
+        // The toggle button graphic is only a cached thumbnail so load the full size layers
+        OverlayAsset overlayAsset = OverlayAssetCache.getAsset(overlayFile.toPath());
+
+        if (overlayAsset != null) {
+          overlayLayerImage.setImage(overlayAsset.getOverlay());
+          overlayLayerMask.setImage(overlayAsset.getMask());
+          overlayDimensions.setText(
+              overlayAsset.getCanvasWidth() + " x " + overlayAsset.getCanvasHeight());
+        }
       } catch (IOException e) {
         log.error("Updating details for: " + overlayFile.getAbsolutePath(), e);
       }
@@ -25,19 +25,24 @@
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableSet;
 import java.util.Optional;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.UnaryOperator;
 import javafx.animation.FadeTransition;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.ObjectProperty;
@@ -107,10 +112,22 @@
 import net.rptools.tokentool.client.RegionSelector;
 import net.rptools.tokentool.client.TokenTool;
 import net.rptools.tokentool.model.ImageView_Preferences;
+import net.rptools.tokentool.model.OverlayAsset;
+import net.rptools.tokentool.model.OverlayTreeItem;
+import net.rptools.tokentool.model.TokenRenderSnapshot;
 import net.rptools.tokentool.model.Window_Preferences;
 import net.rptools.tokentool.util.FileSaveUtil;
 import net.rptools.tokentool.util.I18N;
 import net.rptools.tokentool.util.ImageUtil;
+import net.rptools.tokentool.util.LegacyOverlayCache;
+import net.rptools.tokentool.util.OverlayAssetCache;
+import net.rptools.tokentool.util.OverlayDirectoryWatcher;
+import net.rptools.tokentool.util.OverlayManifest;
+import net.rptools.tokentool.util.OverlayPrefetcher;
+import net.rptools.tokentool.util.OverlayThumbnailCache;
+import net.rptools.tokentool.util.OverlayThumbnailLoader;
+import net.rptools.tokentool.util.RenderScheduler;
+import net.rptools.tokentool.util.TokenCompositor;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -186,8 +203,37 @@ public class TokenTool_Controller {
   private static final Logger log = LogManager.getLogger(TokenTool_Controller.class);
 
   private static ExecutorService executorService;
+  private static ExecutorService thumbnailExecutorService;
   private static Thread loadOverlaysThread = new Thread();
-  private static AtomicInteger loadCount = new AtomicInteger(0);
+  private static OverlayDirectoryWatcher overlayDirectoryWatcher;
+
+  private final RenderScheduler previewRenderScheduler =
+      new RenderScheduler(this::renderTokenPreview);
+
+  // Previews render one at a time, a waiting render is replaced by a newer one
+  private static final ExecutorService renderExecutorService =
+      new ThreadPoolExecutor(
+          1,
+          1,
+          0L,
+          TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(1),
+          runable -> {
+            Thread renderThread = Executors.defaultThreadFactory().newThread(runable);
+            renderThread.setDaemon(true);
+            return renderThread;
+          },
+          new ThreadPoolExecutor.DiscardOldestPolicy());
+  private final AtomicLong renderGeneration = new AtomicLong();
+  private TokenRenderSnapshot pendingRenderSnapshot;
+
+  // Drafts are rendered no larger than this, the preview is shown at 190 x 190
+  private static final int DRAFT_PREVIEW_SIZE = 256;
+  private static final Duration DRAFT_IDLE_TIME = Duration.millis(250);
+  private final PauseTransition draftIdleTimer = new PauseTransition(DRAFT_IDLE_TIME);
+  private boolean draftPreview = false;
+  private static final OverlayPrefetcher overlayPrefetcher = new OverlayPrefetcher();
+  private static final int PREFETCH_RECENT_COUNT = 3;
 
   private static int overlayCount;
 
@@ -359,6 +405,21 @@ void initialize() {
               return loadOverlaysThread;
             });
 
+    // Thumbnails are loaded as tree cells become visible, bound the threads used to do so
+    thumbnailExecutorService =
+        Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runable -> {
+              Thread thumbnailThread = Executors.defaultThreadFactory().newThread(runable);
+              thumbnailThread.setDaemon(true);
+              return thumbnailThread;
+            });
+
+    startOverlayDirectoryWatcher();
+
+    // Render the full resolution preview once continuous input has stopped
+    draftIdleTimer.setOnFinished(event -> finishTokenPreviewDraft());
+
     overlayTreeView.setShowRoot(false);
     overlayTreeView
         .getSelectionModel()
@@ -701,7 +762,7 @@ void editCopyImageMenu_OnAction(ActionEvent event) {
     }
 
     // for paste as image, e.g. in GIMP
-    content.putImage(tokenImageView.getImage());
+    content.putImage(getTokenImage());
 
     // Finally, put contents on clip board
     clipboard.setContent(content);
@@ -879,7 +940,7 @@ void compositeTokenPane_MouseDragged(MouseEvent event) {
     getCurrentLayer().setTranslateX(event.getX() - dragStart.x + currentImageOffset.x);
     getCurrentLayer().setTranslateY(event.getY() - dragStart.y + currentImageOffset.y);
 
-    updateTokenPreviewImageView();
+    updateTokenPreviewDraft();
   }
 
   @FXML
@@ -896,6 +957,7 @@ void compositeTokenPane_MousePressed(MouseEvent event) {
   @FXML
   void compositeTokenPane_MouseReleased(MouseEvent event) {
     portraitImageView.setCursor(Cursor.HAND);
+    finishTokenPreviewDraft();
     updateTokenPreviewImageView();
   }
 
@@ -937,7 +999,7 @@ void compositeTokenPane_OnScroll(ScrollEvent event) {
     }
 
     event.consume();
-    updateTokenPreviewImageView();
+    updateTokenPreviewDraft();
   }
 
   @FXML
@@ -946,6 +1008,7 @@ void compositeTokenPane_OnZoom(ZoomEvent event) {
 
     getCurrentLayer().setScaleX(scale);
     getCurrentLayer().setScaleY(scale);
+    updateTokenPreviewDraft();
   }
 
   @FXML
@@ -958,6 +1021,7 @@ void compositeTokenPane_OnRotate(RotateEvent event) {
 
     getCurrentLayer().setRotate(r);
     event.consume();
+    updateTokenPreviewDraft();
   }
 
   @FXML
@@ -1081,7 +1145,7 @@ void tokenImageView_OnDragDetected(MouseEvent event) {
     } catch (Exception e) {
       log.error(e);
     } finally {
-      if (event.isPrimaryButtonDown()) content.putImage(tokenImageView.getImage());
+      if (event.isPrimaryButtonDown()) content.putImage(getTokenImage());
       else content.putImage(getPortraitImage());
 
       db.setContent(content);
@@ -1184,16 +1248,11 @@ public Map<Path, TreeItem<Path>> getRecentOverlayTreeItems() {
   }
 
   public void updateRecentOverlayTreeItems(Path filePath) {
-    try {
-      TreeItem<Path> recentOverlay =
-          new TreeItem<Path>(filePath, ImageUtil.getOverlayThumb(new ImageView(), filePath));
+    TreeItem<Path> recentOverlay = new OverlayTreeItem(filePath, true);
 
-      // Remove first so if it is on the list it forces to top of list
-      recentOverlayTreeItems.remove(filePath);
-      recentOverlayTreeItems.put(filePath, recentOverlay);
-    } catch (IOException e) {
-      log.error("Error loading recent overlay preference for " + filePath.toString());
-    }
+    // Remove first so if it is on the list it forces to top of list
+    recentOverlayTreeItems.remove(filePath);
+    recentOverlayTreeItems.put(filePath, recentOverlay);
   }
 
   public void expandOverlayOptionsPane(boolean expand) {
@@ -1208,9 +1267,56 @@ public void updateOverlayTreeview(TreeItem<Path> overlayTreeItems) {
     overlayTreeView.setRoot(overlayTreeItems);
   }
 
+  /*
+   * Every drag, scroll, key press and slider change asks for a new preview, the preview is rendered
+   * once per pulse with the latest state
+   */
   public void updateTokenPreviewImageView() {
-    tokenImageView.setImage(
-        ImageUtil.composePreview(
+    previewRenderScheduler.requestRender();
+  }
+
+  /*
+   * During continuous input the preview is rendered as a reduced resolution draft, the full
+   * resolution preview follows once the input stops
+   */
+  private void updateTokenPreviewDraft() {
+    draftPreview = true;
+    draftIdleTimer.playFromStart();
+    updateTokenPreviewImageView();
+  }
+
+  private void finishTokenPreviewDraft() {
+    draftIdleTimer.stop();
+
+    if (draftPreview) {
+      draftPreview = false;
+      updateTokenPreviewImageView();
+    }
+  }
+
+  /*
+   * The token preview with any pending changes rendered, use this rather than reading the
+   * tokenImageView directly
+   */
+  private Image getTokenImage() {
+    finishTokenPreviewDraft();
+    previewRenderScheduler.flush();
+
+    // Saving can't wait on the render thread, render the latest snapshot here instead
+    TokenRenderSnapshot snapshot = pendingRenderSnapshot;
+    if (snapshot != null)
+      publishTokenPreview(renderGeneration.get(), ImageUtil.renderToken(snapshot));
+
+    return tokenImageView.getImage();
+  }
+
+  /*
+   * The layers are captured here on the FX thread and rendered on the render thread, only the
+   * finished token comes back. Each capture is a new generation, older renders are dropped.
+   */
+  private void renderTokenPreview() {
+    TokenRenderSnapshot snapshot =
+        ImageUtil.createRenderSnapshot(
             compositeTokenPane,
             backgroundImageView,
             backgroundColorPicker.getValue(),
@@ -1218,7 +1324,45 @@ public void updateTokenPreviewImageView() {
             maskImageView,
             overlayImageView,
             overlayUseAsBaseCheckbox.isSelected(),
-            clipPortraitCheckbox.isSelected()));
+            clipPortraitCheckbox.isSelected());
+    long generation = renderGeneration.incrementAndGet();
+
+    if (draftPreview && snapshot != null) snapshot = snapshot.createDraft(DRAFT_PREVIEW_SIZE);
+
+    // Effects other than the portrait blur & glow still need a snapshot of the scene graph
+    if (snapshot == null) {
+      publishTokenPreview(
+          generation,
+          ImageUtil.composePreview(
+              compositeTokenPane,
+              backgroundImageView,
+              backgroundColorPicker.getValue(),
+              portraitImageView,
+              maskImageView,
+              overlayImageView,
+              overlayUseAsBaseCheckbox.isSelected(),
+              clipPortraitCheckbox.isSelected()));
+      return;
+    }
+
+    TokenRenderSnapshot renderSnapshot = snapshot;
+    pendingRenderSnapshot = renderSnapshot;
+    renderExecutorService.execute(
+        () -> {
+          // Superseded while it was waiting
+          if (generation != renderGeneration.get()) return;
+
+          Image tokenImage = ImageUtil.renderToken(renderSnapshot);
+          Platform.runLater(() -> publishTokenPreview(generation, tokenImage));
+        });
+  }
+
+  private void publishTokenPreview(long generation, Image tokenImage) {
+    // A newer snapshot has been taken since this render started
+    if (generation != renderGeneration.get()) return;
+
+    pendingRenderSnapshot = null;
+    tokenImageView.setImage(tokenImage);
     tokenImageView.setPreserveRatio(true);
   }
 
@@ -1260,10 +1404,8 @@ private boolean writeTokenImage(File tokenFile) {
     try {
       Image tokenImage;
       if (clipPortraitCheckbox.isSelected())
-        tokenImage =
-            ImageUtil.resizeCanvas(
-                tokenImageView.getImage(), getOverlayWidth(), getOverlayHeight());
-      else tokenImage = tokenImageView.getImage();
+        tokenImage = ImageUtil.resizeCanvas(getTokenImage(), getOverlayWidth(), getOverlayHeight());
+      else tokenImage = getTokenImage();
 
       return ImageIO.write(SwingFXUtils.fromFXImage(tokenImage, null), "png", tokenFile);
     } catch (IOException e) {
@@ -1375,7 +1517,10 @@ private void addPseudoClassToLeafs(TreeView<Path> tree) {
                       cell.setGraphic(null);
                     } else {
                       cell.setText(newValue.toFile().getName());
-                      cell.setGraphic(cell.getTreeItem().getGraphic());
+                      cell.setGraphic(null);
+
+                      if (cell.getTreeItem() != null && cell.getTreeItem().isLeaf())
+                        loadThumbnail(cell, newValue);
                     }
                   });
           cell.treeItemProperty()
@@ -1387,6 +1532,46 @@ private void addPseudoClassToLeafs(TreeView<Path> tree) {
         });
   }
 
+  /*
+   * Thumbnails are only loaded once a cell actually displays the overlay. If the thumbnail is not
+   * already in memory it is loaded in the background and only applied if the cell still shows the
+   * same overlay by the time it's ready.
+   */
+  private void loadThumbnail(TreeCell<Path> cell, Path overlayPath) {
+    Image thumb = OverlayThumbnailCache.getCachedThumbnail(overlayPath);
+
+    if (thumb != null) {
+      cell.setGraphic(createThumbView(thumb));
+      return;
+    }
+
+    Task<Image> task =
+        new Task<Image>() {
+          @Override
+          protected Image call() throws Exception {
+            return OverlayThumbnailCache.getThumbnail(overlayPath);
+          }
+        };
+
+    task.setOnSucceeded(
+        event -> {
+          if (overlayPath.equals(cell.getItem()) && task.getValue() != null)
+            cell.setGraphic(createThumbView(task.getValue()));
+        });
+    task.setOnFailed(
+        event -> log.error("Error loading thumbnail for " + overlayPath, task.getException()));
+
+    thumbnailExecutorService.execute(task);
+  }
+
+  private ImageView createThumbView(Image thumb) {
+    ImageView thumbView = new ImageView(thumb);
+    thumbView.setFitWidth(AppConstants.THUMB_SIZE);
+    thumbView.setPreserveRatio(true);
+
+    return thumbView;
+  }
+
   public void updateImage(Image image, String imageName, boolean setBackground) {
     if (setBackground) backgroundMenuItem.fire();
     else portraitMenuItem.fire();
@@ -1440,30 +1625,75 @@ private void updateCompositImageView(TreeItem<Path> treeNode) {
     if (treeNode == null) return;
 
     // I'm not a leaf on the wind! (Sub directory node)
-    if (treeNode.getChildren().size() > 0) return;
+    if (!treeNode.isLeaf() || Files.isDirectory(treeNode.getValue())) {
+      overlayPrefetcher.cancel();
+      return;
+    }
 
     try {
       Path filePath = treeNode.getValue();
       lastSelectedItem = treeNode;
 
+      // Recently used overlays are served already decoded
+      OverlayAsset overlayAsset = OverlayAssetCache.getAsset(filePath);
+      if (overlayAsset == null) return;
+
       // Set the Image Views
-      maskImageView = ImageUtil.getMaskImage(maskImageView, filePath);
-      overlayImageView = ImageUtil.getOverlayImage(overlayImageView, filePath);
+      maskImageView.setImage(overlayAsset.getMask());
+      overlayImageView.setImage(overlayAsset.getOverlay());
 
       // Set the text label
       overlayNameLabel.setText(FilenameUtils.getBaseName(filePath.toFile().getName()));
       overlayInfoLabel.setText(
-          (int) overlayImageView.getImage().getWidth()
-              + " x "
-              + (int) overlayImageView.getImage().getHeight());
+          overlayAsset.getCanvasWidth() + " x " + overlayAsset.getCanvasHeight());
 
       updateTokenPreviewImageView();
+      prefetchOverlays(treeNode);
     } catch (IOException e) {
       // Not a valid URL, most likely this is just because it's a directory node.
       e.printStackTrace();
     }
   }
 
+  /*
+   * Decode the overlays next to the selection, then the most recent overlays, in the background so
+   * stepping through the tree with the arrow keys doesn't wait on a decode
+   */
+  private void prefetchOverlays(TreeItem<Path> treeNode) {
+    List<Path> overlayPaths = new ArrayList<>();
+
+    TreeItem<Path> nextOverlay = getSiblingOverlay(treeNode, true);
+    if (nextOverlay != null) overlayPaths.add(nextOverlay.getValue());
+
+    TreeItem<Path> previousOverlay = getSiblingOverlay(treeNode, false);
+    if (previousOverlay != null) overlayPaths.add(previousOverlay.getValue());
+
+    List<Path> recentOverlays = new ArrayList<>(recentOverlayTreeItems.keySet());
+    Collections.reverse(recentOverlays);
+
+    int recentCount = 0;
+    for (Path recentOverlay : recentOverlays) {
+      if (recentCount >= PREFETCH_RECENT_COUNT) break;
+      if (recentOverlay.equals(treeNode.getValue()) || overlayPaths.contains(recentOverlay))
+        continue;
+
+      overlayPaths.add(recentOverlay);
+      recentCount++;
+    }
+
+    overlayPrefetcher.prefetch(overlayPaths);
+  }
+
+  private TreeItem<Path> getSiblingOverlay(TreeItem<Path> treeNode, boolean next) {
+    TreeItem<Path> sibling = next ? treeNode.nextSibling() : treeNode.previousSibling();
+
+    // Skip over sub directories and the recent folder
+    while (sibling != null && (!sibling.isLeaf() || sibling == recentFolder))
+      sibling = next ? sibling.nextSibling() : sibling.previousSibling();
+
+    return sibling;
+  }
+
   public Color getBackgroundColor() {
     return backgroundColorPicker.getValue();
   }
@@ -1472,32 +1702,171 @@ public void setBackgroundColor(Color newColor) {
     backgroundColorPicker.setValue(newColor);
   }
 
+  /*
+   * Changes made to the overlay directory, by Manage Overlays or outside of TokenTool, are applied to
+   * the thumbnail cache and the overlay tree as they happen so only the changed overlays are decoded
+   */
+  private void startOverlayDirectoryWatcher() {
+    overlayDirectoryWatcher =
+        new OverlayDirectoryWatcher(
+            AppConstants.OVERLAY_DIR.toPath(),
+            new OverlayDirectoryWatcher.Listener() {
+              @Override
+              public void overlayCreated(Path path) {
+                cacheCreatedOverlays(path);
+                OverlayThumbnailCache.saveIndex();
+
+                Platform.runLater(
+                    () -> {
+                      if (overlayTreeView.getRoot() instanceof OverlayTreeItem)
+                        ((OverlayTreeItem) overlayTreeView.getRoot()).add(path);
+
+                      // Replaced overlays need their thumbnail redrawn
+                      overlayTreeView.refresh();
+                    });
+              }
+
+              @Override
+              public void overlayDeleted(Path path) {
+                removeFromManifest(path);
+                OverlayThumbnailCache.remove(path);
+                OverlayAssetCache.remove(path);
+
+                // Release the rasters of the deleted overlay, the overlay shown is simply redrawn
+                TokenCompositor.clearCache();
+                OverlayThumbnailCache.saveIndex();
+
+                Platform.runLater(
+                    () -> {
+                      if (overlayTreeView.getRoot() instanceof OverlayTreeItem)
+                        ((OverlayTreeItem) overlayTreeView.getRoot()).remove(path);
+
+                      recentOverlayTreeItems
+                          .entrySet()
+                          .removeIf(
+                              recent -> {
+                                if (!recent.getKey().startsWith(path)) return false;
+
+                                recentFolder.getChildren().remove(recent.getValue());
+                                return true;
+                              });
+                    });
+              }
+
+              @Override
+              public void overflow() {
+                Platform.runLater(() -> refreshCache());
+              }
+            });
+
+    try {
+      overlayDirectoryWatcher.start();
+    } catch (IOException e) {
+      log.error("Unable to watch overlay directory, overlays will be reloaded after changes.", e);
+      overlayDirectoryWatcher.stop();
+    }
+  }
+
+  private void removeFromManifest(Path path) {
+    try {
+      OverlayManifest.getCurrent().remove(path);
+    } catch (IOException e) {
+      log.error("Error removing " + path + " from the overlay manifest", e);
+    }
+  }
+
+  /*
+   * Adds the new overlays to the manifest and caches their thumbnails, a new directory adds
+   * everything under it
+   */
+  private void cacheCreatedOverlays(Path path) {
+    OverlayManifest overlayManifest;
+    try {
+      overlayManifest = OverlayManifest.getCurrent();
+    } catch (IOException e) {
+      log.error("Error adding " + path + " to the overlay manifest", e);
+      return;
+    }
+
+    for (OverlayManifest.Entry overlay : overlayManifest.add(path)) {
+      Path overlayPath = overlayManifest.toPath(overlay);
+
+      // A replaced overlay will be decoded again when next selected
+      OverlayAssetCache.remove(overlayPath);
+
+      try {
+        OverlayThumbnailCache.update(overlayPath, overlay.getSize(), overlay.getLastModified());
+      } catch (IOException e) {
+        log.error("Error caching overlay " + overlayPath, e);
+      }
+    }
+  }
+
+  /**
+   * @return true if changes to the overlay directory are already being applied as they happen, in
+   *     which case there is no need to call refreshCache()
+   */
+  public boolean isWatchingOverlays() {
+    return overlayDirectoryWatcher != null && overlayDirectoryWatcher.isRunning();
+  }
+
   public void refreshCache() {
+    // Any overlay may have changed, nothing rendered from the old ones is kept
+    TokenCompositor.clearCache();
+
     overlayTreeProgressBar.setStyle("");
     overlayTreeProgressBar.setVisible(true);
     overlayTreeProgressBar.setOpacity(1.0);
+    overlayTreeProgressBar.setProgress(0);
     overlayNameLabel.setOpacity(0.0);
     overlayInfoLabel.setOpacity(0.0);
     progressBarLabel.setVisible(true);
     updateOverlayTreeview(null);
 
-    try {
-      loadCount.set(0);
-      overlayCount =
-          (int) Files.walk(AppConstants.OVERLAY_DIR.toPath()).filter(Files::isRegularFile).count();
-      log.info("overlayCount: " + overlayCount);
+    final String I18N_CACHE_TEXT = I18N.getString("TokenTool.treeview.caching");
 
-      treeItems = cacheOverlays(AppConstants.OVERLAY_DIR, null, AppConstants.THUMB_SIZE);
-    } catch (IOException e) {
-      log.error("Error reloading overlay cache!", e);
-    }
+    final Task<Void> task =
+        new Task<Void>() {
+          @Override
+          protected Void call() throws Exception {
+            OverlayManifest overlayManifest = OverlayManifest.scan(AppConstants.OVERLAY_DIR);
+            overlayCount = overlayManifest.getOverlayCount();
+            log.info("overlayCount: " + overlayCount);
+
+            new OverlayThumbnailLoader(
+                    overlayCount,
+                    progress ->
+                        Platform.runLater(
+                            () -> {
+                              overlayTreeProgressBar.setProgress(progress);
+                              progressBarLabel.setText(
+                                  I18N_CACHE_TEXT
+                                      + Math.round(overlayCount * (1 - progress))
+                                      + "...");
+                            }))
+                .load(overlayManifest);
+
+            OverlayThumbnailCache.evictStale(overlayManifest);
+            LegacyOverlayCache.evictStale(overlayManifest);
+            OverlayThumbnailCache.saveIndex();
+
+            return null;
+          }
+        };
+
+    task.setOnSucceeded(event -> treeViewFinish());
+    task.setOnFailed(
+        event -> {
+          log.error("Error reloading overlay cache!", task.getException());
+          treeViewFinish();
+        });
+
+    executorService.execute(task);
   }
 
   private void treeViewFinish() {
     log.debug("***treeViewFinish called");
-    // Sort the nodes off of root
-    treeItems = sortTreeNodes(treeItems);
-
+    treeItems = new OverlayTreeItem(AppConstants.OVERLAY_DIR, true);
     updateOverlayTreeview(treeItems);
     addPseudoClassToLeafs(overlayTreeView);
     updateOverlayTreeViewRecentFolder(false);
@@ -1530,120 +1899,6 @@ private void treeViewFinish() {
     infoFadeIn.playFromStart();
   }
 
-  private TreeItem<Path> cacheOverlays(File dir, TreeItem<Path> parent, int THUMB_SIZE)
-      throws IOException {
-    log.debug("Caching " + dir.getAbsolutePath());
-
-    TreeItem<Path> root = new TreeItem<>(dir.toPath());
-    root.setExpanded(false);
-    File[] files = dir.listFiles();
-    final String I18N_CACHE_TEXT = I18N.getString("TokenTool.treeview.caching");
-
-    final Task<Void> task =
-        new Task<Void>() {
-          @Override
-          protected Void call() throws Exception {
-            for (File file : files) {
-              if (loadOverlaysThread.isInterrupted()) break;
-
-              if (file.isDirectory()) {
-                cacheOverlays(file, root, THUMB_SIZE);
-              } else {
-                Path filePath = file.toPath();
-                TreeItem<Path> imageNode =
-                    new TreeItem<>(filePath, ImageUtil.getOverlayThumb(new ImageView(), filePath));
-                root.getChildren().add(imageNode);
-                loadCount.getAndIncrement();
-                overlayTreeProgressBar
-                    .progressProperty()
-                    .set(loadCount.doubleValue() / overlayCount);
-              }
-            }
-
-            if (parent != null) {
-              // When we show the overlay image, the TreeItem value is empty so we need to
-              // sort those to the bottom for a cleaner look and keep sub dir's at the top.
-              // If a node has no children then it's an overlay, otherwise it's a directory...
-              root.getChildren()
-                  .sort(
-                      new Comparator<TreeItem<Path>>() {
-                        @Override
-                        public int compare(TreeItem<Path> o1, TreeItem<Path> o2) {
-                          if (o1.getChildren().size() == 0 && o2.getChildren().size() == 0)
-                            return 0;
-                          else if (o1.getChildren().size() == 0) return Integer.MAX_VALUE;
-                          else if (o2.getChildren().size() == 0) return Integer.MIN_VALUE;
-                          else return o1.getValue().compareTo(o2.getValue());
-                        }
-                      });
-
-              parent.getChildren().add(root);
-
-              parent
-                  .getChildren()
-                  .sort(
-                      new Comparator<TreeItem<Path>>() {
-                        @Override
-                        public int compare(TreeItem<Path> o1, TreeItem<Path> o2) {
-                          if (o1.getChildren().size() == 0 && o2.getChildren().size() == 0)
-                            return 0;
-                          else if (o1.getChildren().size() == 0) return Integer.MAX_VALUE;
-                          else if (o2.getChildren().size() == 0) return Integer.MIN_VALUE;
-                          else return o1.getValue().compareTo(o2.getValue());
-                        }
-                      });
-            }
-
-            return null;
-          }
-        };
-
-    overlayTreeProgressBar
-        .progressProperty()
-        .addListener(
-            observable -> {
-              Platform.runLater(
-                  () ->
-                      progressBarLabel.setText(
-                          I18N_CACHE_TEXT
-                              + Math.round(overlayCount - loadCount.doubleValue())
-                              + "..."));
-            });
-
-    // Only add this listener to the parent task so it's only called once
-    if (parent == null) {
-      overlayTreeProgressBar
-          .progressProperty()
-          .addListener(
-              observable -> {
-                Platform.runLater(
-                    () -> {
-                      if (overlayTreeProgressBar.getProgress() >= 1) treeViewFinish();
-                    });
-              });
-    }
-
-    executorService.execute(task);
-    return root;
-  }
-
-  private TreeItem<Path> sortTreeNodes(TreeItem<Path> tree) {
-    // Sort the nodes off of root
-    tree.getChildren()
-        .sort(
-            new Comparator<TreeItem<Path>>() {
-              @Override
-              public int compare(TreeItem<Path> o1, TreeItem<Path> o2) {
-                if (o1.getChildren().size() == 0 && o2.getChildren().size() == 0) return 0;
-                else if (o1.getChildren().size() == 0) return Integer.MAX_VALUE;
-                else if (o2.getChildren().size() == 0) return Integer.MIN_VALUE;
-                else return o1.getValue().compareTo(o2.getValue());
-              }
-            });
-
-    return tree;
-  }
-
   /*
    * getter/setter methods, mainly for user preferences
    */
@@ -1832,11 +2087,16 @@ public void exitApplication() {
 
     try {
       AppPreferences.savePreferences(this);
+      OverlayThumbnailCache.saveIndex();
+      overlayDirectoryWatcher.stop();
       log.info("Exiting application.");
-      executorService.shutdownNow();
     } catch (Exception e) {
       log.error("Error saving preferences!", e);
     } finally {
+      // Always stopped, their threads could otherwise keep the JVM alive
+      overlayPrefetcher.shutdown();
+      executorService.shutdownNow();
+      renderExecutorService.shutdownNow();
       Platform.exit();
     }
   }
@@ -0,0 +1,88 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.model;
+
+import java.nio.file.Path;
+import javafx.scene.image.Image;
+
+/*
+ * A fully decoded overlay, the mask and overlay layers are both padded to the canvas size. The
+ * layer offsets are where each layer was placed on the canvas, always 0 for non PSD overlays.
+ */
+public class OverlayAsset {
+  private final Path filePath;
+  private final Image mask;
+  private final Image overlay;
+  private final int canvasWidth, canvasHeight;
+  private final int maskOffsetX, maskOffsetY;
+  private final int overlayOffsetX, overlayOffsetY;
+
+  public OverlayAsset(
+      Path filePath,
+      Image mask,
+      Image overlay,
+      int canvasWidth,
+      int canvasHeight,
+      int maskOffsetX,
+      int maskOffsetY,
+      int overlayOffsetX,
+      int overlayOffsetY) {
+    this.filePath = filePath;
+    this.mask = mask;
+    this.overlay = overlay;
+    this.canvasWidth = canvasWidth;
+    this.canvasHeight = canvasHeight;
+    this.maskOffsetX = maskOffsetX;
+    this.maskOffsetY = maskOffsetY;
+    this.overlayOffsetX = overlayOffsetX;
+    this.overlayOffsetY = overlayOffsetY;
+  }
+
+  public Path getFilePath() {
+    return filePath;
+  }
+
+  public Image getMask() {
+    return mask;
+  }
+
+  public Image getOverlay() {
+    return overlay;
+  }
+
+  public int getCanvasWidth() {
+    return canvasWidth;
+  }
+
+  public int getCanvasHeight() {
+    return canvasHeight;
+  }
+
+  public int getMaskOffsetX() {
+    return maskOffsetX;
+  }
+
+  public int getMaskOffsetY() {
+    return maskOffsetY;
+  }
+
+  public int getOverlayOffsetX() {
+    return overlayOffsetX;
+  }
+
+  public int getOverlayOffsetY() {
+    return overlayOffsetY;
+  }
+}
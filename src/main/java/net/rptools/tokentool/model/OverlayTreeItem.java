@@ -18,31 +18,52 @@
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.control.TreeItem;
+import net.rptools.tokentool.util.ImageUtil;
+import net.rptools.tokentool.util.OverlayManifest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/*
+ * A TreeItem that only lists it's directory the first time it is expanded. By default only sub
+ * directories are shown, with showOverlays set the overlay files are listed as leaf items as well,
+ * sorted below the sub directories. No images are loaded by the tree items themselves.
+ *
+ * With showOverlays set the children come from the current OverlayManifest rather than listing the
+ * directory again.
+ */
 public class OverlayTreeItem extends TreeItem<Path> {
   private static final Logger log = LogManager.getLogger(OverlayTreeItem.class);
 
+  private final boolean showOverlays;
   private boolean isFirstTimeChildren = true;
   private boolean isFirstTimeLeaf = true;
   private boolean isLeaf;
 
   public boolean isDirectory() {
-    return Files.isDirectory(getValue());
+    return isDirectory(getValue());
   }
 
   public OverlayTreeItem(Path f) {
-    super(f);
+    this(f, false);
   }
 
   public OverlayTreeItem(File f) {
-    super(f.toPath());
+    this(f.toPath(), false);
+  }
+
+  public OverlayTreeItem(File f, boolean showOverlays) {
+    this(f.toPath(), showOverlays);
+  }
+
+  public OverlayTreeItem(Path f, boolean showOverlays) {
+    super(f);
+    this.showOverlays = showOverlays;
   }
 
   @Override
@@ -62,6 +83,12 @@ public ObservableList<TreeItem<Path>> getChildren() {
   public boolean isLeaf() {
     if (isFirstTimeLeaf) {
       isFirstTimeLeaf = false;
+
+      if (showOverlays) {
+        isLeaf = !isDirectory();
+        return isLeaf;
+      }
+
       try {
         // try-with-resources statement ensures that each resource is closed at the end of the
         // statement otherwise stream is left open and directory can not be deleted!
@@ -76,6 +103,106 @@ public boolean isLeaf() {
     return isLeaf;
   }
 
+  /**
+   * Add a new file or directory to the tree, in sorted order, if its parent directory has already
+   * been listed. Otherwise it will simply be found when the parent is first expanded.
+   *
+   * @param path the new file or directory
+   */
+  public void add(Path path) {
+    if (!accept(path)) return;
+
+    OverlayTreeItem parent = findListed(path.getParent());
+    if (parent == null || parent.findChild(path) != null) return;
+
+    ObservableList<TreeItem<Path>> children = parent.getChildren();
+    int index = 0;
+
+    // Other items, eg the recent overlays folder, are left at the end
+    Comparator<Path> directoriesFirst = getDirectoriesFirst();
+    for (TreeItem<Path> child : children) {
+      if (!(child instanceof OverlayTreeItem)) break;
+      if (directoriesFirst.compare(child.getValue(), path) > 0) break;
+
+      index++;
+    }
+
+    children.add(index, new OverlayTreeItem(path, showOverlays));
+  }
+
+  /**
+   * Remove a file or directory from the tree if its parent directory has already been listed.
+   *
+   * @param path the removed file or directory
+   */
+  public void remove(Path path) {
+    OverlayTreeItem parent = findListed(path.getParent());
+    if (parent == null) return;
+
+    OverlayTreeItem child = parent.findChild(path);
+    if (child != null) parent.getChildren().remove(child);
+  }
+
+  /*
+   * Find the item for a directory without listing any directory that hasn't been listed yet
+   */
+  private OverlayTreeItem findListed(Path dir) {
+    if (dir == null || !dir.startsWith(getValue())) return null;
+    if (dir.equals(getValue())) return isFirstTimeChildren ? null : this;
+    if (isFirstTimeChildren) return null;
+
+    for (TreeItem<Path> child : super.getChildren()) {
+      if (child instanceof OverlayTreeItem && dir.startsWith(child.getValue()))
+        return ((OverlayTreeItem) child).findListed(dir);
+    }
+
+    return null;
+  }
+
+  private OverlayTreeItem findChild(Path path) {
+    for (TreeItem<Path> child : super.getChildren()) {
+      if (child instanceof OverlayTreeItem && child.getValue().equals(path))
+        return (OverlayTreeItem) child;
+    }
+
+    return null;
+  }
+
+  private boolean accept(Path path) {
+    if (showOverlays) {
+      OverlayManifest manifest = getManifest();
+      if (manifest != null) return manifest.contains(path);
+    }
+
+    if (Files.isDirectory(path)) return true;
+
+    return showOverlays
+        && ImageUtil.SUPPORTED_FILENAME_FILTER.accept(null, path.getFileName().toString());
+  }
+
+  private boolean isDirectory(Path path) {
+    if (showOverlays) {
+      OverlayManifest manifest = getManifest();
+      if (manifest != null) return manifest.isDirectory(path);
+    }
+
+    return Files.isDirectory(path);
+  }
+
+  private Comparator<Path> getDirectoriesFirst() {
+    return Comparator.comparing((Path path) -> !isDirectory(path))
+        .thenComparing(Comparator.naturalOrder());
+  }
+
+  private OverlayManifest getManifest() {
+    try {
+      return OverlayManifest.getCurrent();
+    } catch (IOException e) {
+      log.error("Unable to read the overlay manifest", e);
+      return null;
+    }
+  }
+
   /**
    * Returning a collection of type ObservableList containing TreeItems, which represent all
    * children of this TreeITem.
@@ -84,9 +211,26 @@ public boolean isLeaf() {
    *     available in this TreeItem. If the handed TreeItem is a leaf, an empty list is returned.
    */
   private ObservableList<TreeItem<Path>> buildChildren() {
+    OverlayManifest manifest = showOverlays ? getManifest() : null;
+
+    if (manifest != null) {
+      return manifest.getChildren(getValue()).stream()
+          .sorted(getDirectoriesFirst())
+          .map(path -> new OverlayTreeItem(path, true))
+          .collect(Collectors.toCollection(() -> FXCollections.observableArrayList()));
+    }
+
     if (Files.isDirectory(getValue())) {
-      try {
-        return Files.list(getValue())
+      try (Stream<Path> files = Files.list(getValue())) {
+        if (showOverlays) {
+          return files
+              .filter(this::accept)
+              .sorted(getDirectoriesFirst())
+              .map(path -> new OverlayTreeItem(path, true))
+              .collect(Collectors.toCollection(() -> FXCollections.observableArrayList()));
+        }
+
+        return files
             .filter(Files::isDirectory)
             .map(OverlayTreeItem::new)
             .collect(Collectors.toCollection(() -> FXCollections.observableArrayList()));
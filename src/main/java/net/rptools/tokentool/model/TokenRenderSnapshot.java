@@ -0,0 +1,161 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.model;
+
+import java.awt.geom.AffineTransform;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.paint.Color;
+import net.rptools.tokentool.util.TokenCompositor.Layer;
+
+/*
+ * Everything needed to render the token, captured from the scene graph on the JavaFX Application
+ * Thread so the token can be rendered on any other thread. Layer images are never modified once
+ * loaded and layers themselves are immutable. Any layer may be null.
+ */
+public class TokenRenderSnapshot {
+  private final int width, height;
+  private final Color backgroundColor;
+  private final Layer background;
+  private final Layer portrait;
+  private final Layer mask;
+  private final Layer overlay;
+  private final double portraitBlurRadius;
+  private final double portraitGlowLevel;
+  private final double portraitEffectScale;
+  private final boolean useAsBase;
+  private final boolean clipImage;
+
+  public TokenRenderSnapshot(
+      int width,
+      int height,
+      Color backgroundColor,
+      Layer background,
+      Layer portrait,
+      Layer mask,
+      Layer overlay,
+      double portraitBlurRadius,
+      double portraitGlowLevel,
+      double portraitEffectScale,
+      boolean useAsBase,
+      boolean clipImage) {
+    this.width = width;
+    this.height = height;
+    this.backgroundColor = backgroundColor;
+    this.background = background;
+    this.portrait = portrait;
+    this.mask = mask;
+    this.overlay = overlay;
+    this.portraitBlurRadius = portraitBlurRadius;
+    this.portraitGlowLevel = portraitGlowLevel;
+    this.portraitEffectScale = portraitEffectScale;
+    this.useAsBase = useAsBase;
+    this.clipImage = clipImage;
+  }
+
+  /**
+   * A reduced resolution copy for previews while the user is still dragging, scrolling, zooming or
+   * rotating. Every layer is scaled along with the token, portrait effects are applied to the
+   * portrait image before it is scaled so they are unchanged.
+   *
+   * @param maxSize the largest width/height of the draft
+   * @return the draft, or this snapshot if it already fits within maxSize
+   */
+  public TokenRenderSnapshot createDraft(int maxSize) {
+    if (width <= maxSize && height <= maxSize) return this;
+
+    double scale = (double) maxSize / Math.max(width, height);
+
+    return new TokenRenderSnapshot(
+        Math.max(1, (int) Math.round(width * scale)),
+        Math.max(1, (int) Math.round(height * scale)),
+        backgroundColor,
+        scale(background, scale),
+        scale(portrait, scale),
+        scale(mask, scale),
+        scale(overlay, scale),
+        portraitBlurRadius,
+        portraitGlowLevel,
+        portraitEffectScale,
+        useAsBase,
+        clipImage);
+  }
+
+  private static Layer scale(Layer layer, double scale) {
+    if (layer == null) return null;
+
+    AffineTransform transform = AffineTransform.getScaleInstance(scale, scale);
+    transform.concatenate(layer.getTransform());
+
+    Rectangle2D clip = layer.getClip();
+    if (clip != null)
+      clip =
+          new Rectangle2D(
+              clip.getMinX() * scale,
+              clip.getMinY() * scale,
+              clip.getWidth() * scale,
+              clip.getHeight() * scale);
+
+    return new Layer(layer.getImage(), transform, layer.getOpacity(), clip);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public Color getBackgroundColor() {
+    return backgroundColor;
+  }
+
+  public Layer getBackground() {
+    return background;
+  }
+
+  public Layer getPortrait() {
+    return portrait;
+  }
+
+  public Layer getMask() {
+    return mask;
+  }
+
+  public Layer getOverlay() {
+    return overlay;
+  }
+
+  public double getPortraitBlurRadius() {
+    return portraitBlurRadius;
+  }
+
+  public double getPortraitGlowLevel() {
+    return portraitGlowLevel;
+  }
+
+  /** @return portrait image pixels per unit of the portrait blur radius */
+  public double getPortraitEffectScale() {
+    return portraitEffectScale;
+  }
+
+  public boolean isUseAsBase() {
+    return useAsBase;
+  }
+
+  public boolean isClipImage() {
+    return clipImage;
+  }
+}
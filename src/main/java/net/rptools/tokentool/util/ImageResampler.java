@@ -0,0 +1,242 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.nio.IntBuffer;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+
+/**
+ * Software image resampling on int ARGB rasters. Each axis is resampled separately, with an area
+ * average when shrinking and Catmull-Rom bicubic interpolation when enlarging. Colors are weighted
+ * by alpha so transparent pixels don't bleed into the edges of opaque ones.
+ *
+ * <p>Nothing here touches the scene graph so it is safe to call from any thread. Large images are
+ * resampled in parallel bands of rows, see {@link RasterExecutor}.
+ */
+public class ImageResampler {
+
+  /**
+   * Resample an image to a new size.
+   *
+   * @param source the image to resample
+   * @param targetWidth the new width in pixels
+   * @param targetHeight the new height in pixels
+   * @return the resampled image, or source if it is already the requested size
+   */
+  public static Image resample(Image source, int targetWidth, int targetHeight) {
+    int sourceWidth = (int) source.getWidth();
+    int sourceHeight = (int) source.getHeight();
+
+    if (sourceWidth == targetWidth && sourceHeight == targetHeight) return source;
+
+    int[] pixels = new int[sourceWidth * sourceHeight];
+    RasterExecutor.readPixels(source, pixels, sourceWidth, sourceHeight);
+
+    int[] resampled = resample(pixels, sourceWidth, sourceHeight, targetWidth, targetHeight);
+
+    WritableImage outputImage = new WritableImage(targetWidth, targetHeight);
+    outputImage
+        .getPixelWriter()
+        .setPixels(
+            0,
+            0,
+            targetWidth,
+            targetHeight,
+            WritablePixelFormat.getIntArgbInstance(),
+            IntBuffer.wrap(resampled),
+            targetWidth);
+
+    return outputImage;
+  }
+
+  /**
+   * Resample non-premultiplied ARGB pixels to a new size.
+   *
+   * @param pixels the source pixels, sourceWidth * sourceHeight long
+   * @param sourceWidth the source width in pixels
+   * @param sourceHeight the source height in pixels
+   * @param targetWidth the new width in pixels
+   * @param targetHeight the new height in pixels
+   * @return new non-premultiplied ARGB pixels, targetWidth * targetHeight long
+   */
+  public static int[] resample(
+      int[] pixels, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+    if (targetWidth <= 0 || targetHeight <= 0)
+      throw new IllegalArgumentException(
+          "Invalid target size: " + targetWidth + " x " + targetHeight);
+
+    Filter columns = Filter.create(sourceWidth, targetWidth);
+    Filter rows = Filter.create(sourceHeight, targetHeight);
+
+    // Horizontal pass into premultiplied float channels, 4 per pixel
+    float[] scratch = new float[targetWidth * sourceHeight * 4];
+    RasterExecutor.forEachRowBand(
+        targetWidth,
+        sourceHeight,
+        (fromRow, toRow) -> {
+          for (int y = fromRow; y < toRow; y++) {
+            int sourceRow = y * sourceWidth;
+            int scratchIndex = y * targetWidth * 4;
+
+            for (int x = 0; x < targetWidth; x++) {
+              float a = 0, r = 0, g = 0, b = 0;
+              int weightIndex = x * columns.taps;
+
+              for (int tap = 0; tap < columns.taps; tap++) {
+                float weight = columns.weights[weightIndex + tap];
+                if (weight == 0) continue;
+
+                int argb = pixels[sourceRow + columns.indices[weightIndex + tap]];
+                float alphaWeight = weight * (argb >>> 24);
+                a += alphaWeight;
+                r += alphaWeight * ((argb >> 16) & 0xff);
+                g += alphaWeight * ((argb >> 8) & 0xff);
+                b += alphaWeight * (argb & 0xff);
+              }
+
+              scratch[scratchIndex++] = a;
+              scratch[scratchIndex++] = r;
+              scratch[scratchIndex++] = g;
+              scratch[scratchIndex++] = b;
+            }
+          }
+        });
+
+    // Vertical pass back to non-premultiplied ARGB
+    int[] resampled = new int[targetWidth * targetHeight];
+    RasterExecutor.forEachRowBand(
+        targetWidth,
+        targetHeight,
+        (fromRow, toRow) -> {
+          for (int y = fromRow; y < toRow; y++) {
+            int weightIndex = y * rows.taps;
+
+            for (int x = 0; x < targetWidth; x++) {
+              float a = 0, r = 0, g = 0, b = 0;
+
+              for (int tap = 0; tap < rows.taps; tap++) {
+                float weight = rows.weights[weightIndex + tap];
+                if (weight == 0) continue;
+
+                int scratchIndex = (rows.indices[weightIndex + tap] * targetWidth + x) * 4;
+                a += weight * scratch[scratchIndex];
+                r += weight * scratch[scratchIndex + 1];
+                g += weight * scratch[scratchIndex + 2];
+                b += weight * scratch[scratchIndex + 3];
+              }
+
+              resampled[y * targetWidth + x] = toArgb(a, r, g, b);
+            }
+          }
+        });
+
+    return resampled;
+  }
+
+  private static int toArgb(float a, float r, float g, float b) {
+    int alpha = clamp(a);
+    if (alpha == 0) return 0;
+
+    // Colors are still weighted by alpha, divide it back out
+    return (alpha << 24) | (clamp(r / a) << 16) | (clamp(g / a) << 8) | clamp(b / a);
+  }
+
+  private static int clamp(float value) {
+    return Math.max(0, Math.min(255, Math.round(value)));
+  }
+
+  /*
+   * The source pixels and weights contributing to each target pixel along one axis. Every target
+   * pixel has the same number of taps, unused taps have a weight of 0.
+   */
+  private static class Filter {
+    final int taps;
+    final int[] indices;
+    final float[] weights;
+
+    private Filter(int targetSize, int taps) {
+      this.taps = taps;
+      this.indices = new int[targetSize * taps];
+      this.weights = new float[targetSize * taps];
+    }
+
+    static Filter create(int sourceSize, int targetSize) {
+      if (targetSize < sourceSize) return createAreaAverage(sourceSize, targetSize);
+      else return createBicubic(sourceSize, targetSize);
+    }
+
+    /*
+     * Each target pixel averages the source pixels it covers, partly covered pixels at either end
+     * are weighted by how much of them is covered
+     */
+    private static Filter createAreaAverage(int sourceSize, int targetSize) {
+      double scale = (double) sourceSize / targetSize;
+      Filter filter = new Filter(targetSize, (int) Math.ceil(scale) + 1);
+
+      for (int i = 0; i < targetSize; i++) {
+        double start = i * scale;
+        double end = Math.min(start + scale, sourceSize);
+        int first = (int) start;
+
+        for (int tap = 0; tap < filter.taps; tap++) {
+          int index = first + tap;
+          double coverage = Math.min(end, index + 1) - Math.max(start, index);
+
+          filter.indices[i * filter.taps + tap] = Math.min(index, sourceSize - 1);
+          filter.weights[i * filter.taps + tap] = (float) (Math.max(coverage, 0) / scale);
+        }
+      }
+
+      return filter;
+    }
+
+    /*
+     * Catmull-Rom interpolation between the 4 nearest source pixels, edge pixels are repeated
+     */
+    private static Filter createBicubic(int sourceSize, int targetSize) {
+      double scale = (double) sourceSize / targetSize;
+      Filter filter = new Filter(targetSize, 4);
+
+      for (int i = 0; i < targetSize; i++) {
+        double center = (i + 0.5) * scale - 0.5;
+        int first = (int) Math.floor(center) - 1;
+        double total = 0;
+
+        for (int tap = 0; tap < 4; tap++) {
+          double weight = catmullRom(center - (first + tap));
+
+          filter.indices[i * 4 + tap] = Math.max(0, Math.min(first + tap, sourceSize - 1));
+          filter.weights[i * 4 + tap] = (float) weight;
+          total += weight;
+        }
+
+        for (int tap = 0; tap < 4; tap++) filter.weights[i * 4 + tap] /= total;
+      }
+
+      return filter;
+    }
+
+    private static double catmullRom(double distance) {
+      double x = Math.abs(distance);
+
+      if (x < 1) return 1.5 * x * x * x - 2.5 * x * x + 1;
+      if (x < 2) return -0.5 * x * x * x + 2.5 * x * x - 4 * x + 2;
+
+      return 0;
+    }
+  }
+}
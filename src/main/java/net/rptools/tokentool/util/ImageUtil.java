@@ -16,6 +16,7 @@
 
 import com.twelvemonkeys.imageio.plugins.psd.PSDImageReader;
 import com.twelvemonkeys.imageio.plugins.psd.PSDMetadata;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -24,26 +25,39 @@
 import java.nio.IntBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javafx.embed.swing.SwingFXUtils;
+import javafx.geometry.BoundingBox;
+import javafx.geometry.Bounds;
 import javafx.geometry.Rectangle2D;
 import javafx.scene.Group;
+import javafx.scene.Node;
 import javafx.scene.SnapshotParameters;
+import javafx.scene.effect.Effect;
+import javafx.scene.effect.GaussianBlur;
+import javafx.scene.effect.Glow;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 import javafx.scene.image.WritablePixelFormat;
 import javafx.scene.layout.StackPane;
 import javafx.scene.paint.Color;
+import javafx.scene.transform.NonInvertibleTransformException;
+import javafx.scene.transform.Transform;
 import javafx.stage.FileChooser.ExtensionFilter;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageInputStream;
+import net.rptools.tokentool.model.TokenRenderSnapshot;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.filefilter.SuffixFileFilter;
@@ -57,33 +71,62 @@ public class ImageUtil {
   private static final int THUMB_SIZE = 100;
   private static final int COLOR_THRESHOLD = 1;
 
+  private static Image scaledOverlaySource, scaledOverlay;
+
+  /*
+   * Thumbnails are served from the persistent OverlayThumbnailCache so only new or changed overlays
+   * are decoded
+   */
   public static ImageView getOverlayThumb(ImageView thumbView, Path filePath) throws IOException {
-    return getImage(thumbView, filePath, true, THUMB_SIZE);
-  }
+    thumbView.setFitWidth(THUMB_SIZE);
+    thumbView.setPreserveRatio(true);
+    thumbView.setImage(OverlayThumbnailCache.getThumbnail(filePath));
 
-  public static ImageView getOverlayImage(ImageView thumbView, Path overlayFileURI)
-      throws IOException {
-    return getImage(thumbView, overlayFileURI, true, 0);
+    return thumbView;
   }
 
-  public static ImageView getMaskImage(ImageView thumbView, Path overlayFileURI)
-      throws IOException {
-    return getImage(thumbView, overlayFileURI, false, 0);
+  /*
+   * Decode the overlay at roughly THUMB_SIZE width and scale it to exactly THUMB_SIZE. The full
+   * resolution overlay is never decoded. This does not use a snapshot so it is safe to call from any
+   * thread.
+   */
+  public static Image createOverlayThumb(Path filePath) throws IOException {
+    Image overlayImage = getImage(filePath, true, THUMB_SIZE);
+    if (overlayImage == null) return null;
+
+    return scaleImage(overlayImage, THUMB_SIZE, THUMB_SIZE, true);
   }
 
-  private static ImageView getImage(
-      ImageView thumbView, final Path filePath, final boolean overlayWanted, final int THUMB_SIZE)
+  /*
+   * A requestedWidth > 0 decodes a reduced size image at least requestedWidth wide (or exactly
+   * requestedWidth for non PSD images). PSD layers are read with source subsampling so only every
+   * nth pixel is decoded.
+   */
+  private static Image getImage(
+      final Path filePath, final boolean overlayWanted, final int requestedWidth)
       throws IOException {
     Image thumb = null;
     String fileURL = filePath.toUri().toURL().toString();
 
-    if (THUMB_SIZE > 0) {
-      thumbView.setFitWidth(THUMB_SIZE);
-      thumbView.setPreserveRatio(true);
-    }
-
     if (ImageUtil.SUPPORTED_IMAGE_FILE_FILTER.accept(null, fileURL)) {
-      thumb = processMagenta(new Image(fileURL), COLOR_THRESHOLD, overlayWanted);
+      // Legacy magenta overlays are split when they are first used, read the cached layer if the
+      // overlay was already split. Thumbnails never split an overlay themselves.
+      File layerFile = LegacyOverlayCache.getLayerFile(filePath, overlayWanted);
+
+      if (layerFile != null) {
+        fileURL = layerFile.toURI().toString();
+
+        if (requestedWidth > 0) thumb = new Image(fileURL, requestedWidth, 0, true, true, false);
+        else thumb = new Image(fileURL);
+      } else if (requestedWidth > 0) {
+        // Smoothing while decoding blends magenta into the edge pixels where it no longer matches,
+        // without it every decoded pixel keeps its exact color and can still be keyed
+        thumb =
+            processMagenta(
+                new Image(fileURL, requestedWidth, 0, true, false, false), overlayWanted);
+      } else {
+        thumb = processMagenta(new Image(fileURL), overlayWanted);
+      }
     } else if (ImageUtil.PSD_FILE_FILTER.accept(null, fileURL)) {
       ImageInputStream is = null;
       PSDImageReader reader = null;
@@ -108,8 +151,20 @@ private static ImageView getImage(
 
         reader = (PSDImageReader) iterator.next();
         reader.setInput(is);
+
+        // Get the width & height of the Mask layer so we can create the overlay the same size
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+
+        // Only decode every nth pixel of the layer when a thumbnail is all that's needed
+        int subsampling = 1;
+        if (requestedWidth > 0) subsampling = Math.max(1, width / requestedWidth);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
         BufferedImage thumbBI;
-        thumbBI = reader.read(imageIndex);
+        thumbBI = reader.read(imageIndex, param);
 
         if (thumbBI != null) {
           int layerIndex = 0;
@@ -123,14 +178,16 @@ private static ImageView getImage(
           // Layer index corresponds to imageIndex - 1 in the reader
           IIOMetadataNode layerInfo = (IIOMetadataNode) layerInfos.item(layerIndex);
 
-          // Get the width & height of the Mask layer so we can create the overlay the same size
-          int width = reader.getWidth(0);
-          int height = reader.getHeight(0);
-
           // Get layer offsets, PhotoShop PSD layers can have different widths/heights and all
           // images start at 0,0 with a layer offset applied
-          int x = Math.max(Integer.parseInt(layerInfo.getAttribute("left")), 0);
-          int y = Math.max(Integer.parseInt(layerInfo.getAttribute("top")), 0);
+          int x = Math.max(Integer.parseInt(layerInfo.getAttribute("left")), 0) / subsampling;
+          int y = Math.max(Integer.parseInt(layerInfo.getAttribute("top")), 0) / subsampling;
+
+          // Subsampled sizes round up, make sure the layer still fits on the canvas
+          if (subsampling > 1) {
+            width = Math.max((width + subsampling - 1) / subsampling, x + thumbBI.getWidth());
+            height = Math.max((height + subsampling - 1) / subsampling, y + thumbBI.getHeight());
+          }
 
           // Lets pad the overlay with transparency to make it the same size as the PSD canvas size
           thumb = resizeCanvas(SwingFXUtils.toFXImage(thumbBI, null), width, height, x, y);
@@ -144,9 +201,7 @@ private static ImageView getImage(
       }
     }
 
-    thumbView.setImage(thumb);
-
-    return thumbView;
+    return thumb;
   }
 
   public static Image resizeCanvas(Image imageSource, double newWidth, double newHeight) {
@@ -168,50 +223,77 @@ public static Image resizeCanvas(
     if (sourceWidth == newWidth && sourceHeight == newHeight) return imageSource;
 
     WritableImage outputImage = new WritableImage(newWidth, newHeight);
-    PixelReader pixelReader = imageSource.getPixelReader();
     PixelWriter pixelWriter = outputImage.getPixelWriter();
     WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
 
-    int[] buffer = new int[sourceWidth * sourceHeight];
-    pixelReader.getPixels(0, 0, sourceWidth, sourceHeight, format, buffer, 0, sourceWidth);
+    int[] buffer = RasterBufferPool.borrowPixels(sourceWidth * sourceHeight);
+    RasterExecutor.readPixels(imageSource, buffer, sourceWidth, sourceHeight);
     pixelWriter.setPixels(
         offsetX, offsetY, sourceWidth, sourceHeight, format, buffer, 0, sourceWidth);
+    RasterBufferPool.returnPixels(buffer);
 
     return outputImage;
   }
 
   /*
-   * Resize the overall image width/height scaled to the target width/height
+   * Resize the overall image width/height scaled to the target width/height. With preserveRatio the
+   * image is fit within the target width/height, the same as an ImageView would. Uses the software
+   * ImageResampler so it is safe to call from any thread.
    */
   public static Image scaleImage(
       Image source, double targetWidth, double targetHeight, boolean preserveRatio) {
-    ImageView imageView = new ImageView(source);
-    imageView.setPreserveRatio(preserveRatio);
-    imageView.setFitWidth(targetWidth);
-    imageView.setFitHeight(targetHeight);
-    return imageView.snapshot(null, null);
+    double width = targetWidth;
+    double height = targetHeight;
+
+    if (preserveRatio) {
+      double ratio = Math.min(targetWidth / source.getWidth(), targetHeight / source.getHeight());
+      width = source.getWidth() * ratio;
+      height = source.getHeight() * ratio;
+    }
+
+    return ImageResampler.resample(
+        source, Math.max(1, (int) Math.round(width)), Math.max(1, (int) Math.round(height)));
   }
 
   /*
-   * Return the intersection between the source image and the mask. Note, the mask does not need to be magenta anymore, any non-transparent pixel is considering a mask
+   * Return the intersection between the source image and the mask. Note, the mask does not need to be magenta anymore, any non-transparent pixel is considering a mask.
+   * The source alpha is scaled by the inverse of the mask alpha so anti-aliased mask edges stay smooth.
+   * The returned image is borrowed from the RasterBufferPool, return it once it is no longer used.
    */
-  private static Image clipImageWithMask(Image imageSource, Image imageMask) {
+  private static WritableImage clipImageWithMask(Image imageSource, Image imageMask) {
     int imageWidth = (int) imageMask.getWidth();
     int imageHeight = (int) imageMask.getHeight();
+    int sourceWidth = Math.min(imageWidth, (int) imageSource.getWidth());
+    int sourceHeight = Math.min(imageHeight, (int) imageSource.getHeight());
+    WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
 
-    WritableImage outputImage = new WritableImage(imageWidth, imageHeight);
-    PixelReader pixelReader_Mask = imageMask.getPixelReader();
-    PixelReader pixelReader_Source = imageSource.getPixelReader();
-    PixelWriter pixelWriter = outputImage.getPixelWriter();
+    int[] maskPixels = RasterBufferPool.borrowPixels(imageWidth * imageHeight);
+    int[] pixels = RasterBufferPool.borrowPixels(imageWidth * imageHeight);
+    RasterExecutor.readPixels(imageMask, maskPixels, imageWidth, imageHeight);
 
-    for (int readY = 0; readY < imageHeight; readY++) {
-      for (int readX = 0; readX < imageWidth; readX++) {
-        Color pixelColor = pixelReader_Mask.getColor(readX, readY);
+    // Pooled buffers aren't cleared, anything the source doesn't cover has to be transparent
+    if (sourceWidth < imageWidth || sourceHeight < imageHeight) Arrays.fill(pixels, 0);
 
-        if (pixelColor.equals(Color.TRANSPARENT))
-          pixelWriter.setColor(readX, readY, pixelReader_Source.getColor(readX, readY));
-      }
-    }
+    if (sourceWidth == imageWidth)
+      RasterExecutor.readPixels(imageSource, pixels, sourceWidth, sourceHeight);
+    else
+      imageSource
+          .getPixelReader()
+          .getPixels(0, 0, sourceWidth, sourceHeight, format, pixels, 0, imageWidth);
+
+    RasterExecutor.forEachRowBand(
+        imageWidth,
+        imageHeight,
+        (fromRow, toRow) ->
+            RasterKernels.get().clip(pixels, maskPixels, fromRow * imageWidth, toRow * imageWidth));
+
+    WritableImage outputImage = RasterBufferPool.borrowImage(imageWidth, imageHeight);
+    outputImage
+        .getPixelWriter()
+        .setPixels(0, 0, imageWidth, imageHeight, format, pixels, 0, imageWidth);
+
+    RasterBufferPool.returnPixels(maskPixels);
+    RasterBufferPool.returnPixels(pixels);
 
     return outputImage;
   }
@@ -226,27 +308,11 @@ private static Image autoCropImage(Image imageSource) {
   public static Image autoCropImage(
       Image imageSource, Color backgroundColor, Image backgroundImage) {
     ImageView croppedImageView = new ImageView(imageSource);
-    PixelReader pixelReader = imageSource.getPixelReader();
 
-    int imageWidth = (int) imageSource.getWidth();
-    int imageHeight = (int) imageSource.getHeight();
-    int minX = imageWidth, minY = imageHeight, maxX = 0, maxY = 0;
-
-    // Find the first and last pixels that are not transparent to create a bounding viewport
-    for (int readY = 0; readY < imageHeight; readY++) {
-      for (int readX = 0; readX < imageWidth; readX++) {
-        Color pixelColor = pixelReader.getColor(readX, readY);
-
-        if (!pixelColor.equals(Color.TRANSPARENT)) {
-          if (readX < minX) minX = readX;
-          if (readX > maxX) maxX = readX;
-
-          if (readY < minY) minY = readY;
-          if (readY > maxY) maxY = readY;
-        }
-      }
-    }
+    int[] bounds = getOpaqueBounds(imageSource);
+    if (bounds == null) return new WritableImage(1, 1);
 
+    int minX = bounds[0], minY = bounds[1], maxX = bounds[2], maxY = bounds[3];
     if (maxX - minX <= 0 || maxY - minY <= 0) return new WritableImage(1, 1);
 
     // Create a viewport to clip the image using snapshot
@@ -262,6 +328,116 @@ public static Image autoCropImage(
     }
   }
 
+  /*
+   * Find the first and last pixels that are not transparent, returned as {minX, minY, maxX, maxY}
+   * (inclusive) or null if every pixel is transparent. Each edge is scanned inward and stops at the
+   * first non-transparent pixel so the interior of an opaque token is never looked at.
+   */
+  static int[] getOpaqueBounds(Image image) {
+    int imageWidth = (int) image.getWidth();
+    int imageHeight = (int) image.getHeight();
+
+    int[] pixels = RasterBufferPool.borrowPixels(imageWidth * imageHeight);
+    try {
+      RasterExecutor.readPixels(image, pixels, imageWidth, imageHeight);
+      return getOpaqueBounds(pixels, imageWidth, imageHeight);
+    } finally {
+      RasterBufferPool.returnPixels(pixels);
+    }
+  }
+
+  static int[] getOpaqueBounds(int[] pixels, int imageWidth, int imageHeight) {
+    return getOpaqueBounds(pixels, imageWidth, new int[] {0, 0, imageWidth - 1, imageHeight - 1});
+  }
+
+  /*
+   * Only looks within region, {minX, minY, maxX, maxY} (inclusive), when every pixel outside of it
+   * is known to be transparent. The closer region is to the actual bounds the sooner each edge
+   * stops.
+   */
+  static int[] getOpaqueBounds(int[] pixels, int imageWidth, int[] region) {
+    int left = region[0], top = region[1], right = region[2], bottom = region[3];
+
+    // Top down to the first row with a visible pixel, that also gives a first guess at minX/maxX
+    int minY = top, minX = right + 1, maxX = left - 1;
+    for (; minY <= bottom; minY++) {
+      int row = minY * imageWidth;
+      for (int x = left; x <= right; x++) {
+        if ((pixels[row + x] >>> 24) != 0) {
+          minX = x;
+          break;
+        }
+      }
+
+      if (minX <= right) {
+        for (int x = right; x >= minX; x--) {
+          if ((pixels[row + x] >>> 24) != 0) {
+            maxX = x;
+            break;
+          }
+        }
+        break;
+      }
+    }
+
+    if (minY > bottom) return null;
+
+    // Bottom up, there is at least the minY row to stop at
+    int maxY = bottom;
+    for (; maxY > minY; maxY--) {
+      if (hasOpaquePixel(pixels, maxY * imageWidth, left, right + 1)) break;
+    }
+
+    // Remaining rows only need to look at the columns outside of the bounds found so far, each band
+    // narrows its own copy and the results are merged
+    AtomicInteger mergedMinX = new AtomicInteger(minX);
+    AtomicInteger mergedMaxX = new AtomicInteger(maxX);
+    int firstRow = minY + 1;
+    int lastRow = maxY;
+
+    RasterExecutor.forEachRowBand(
+        right - left + 1,
+        lastRow - firstRow + 1,
+        (fromRow, toRow) -> {
+          int bandMinX = mergedMinX.get();
+          int bandMaxX = mergedMaxX.get();
+
+          for (int y = firstRow + fromRow; y < firstRow + toRow; y++) {
+            int row = y * imageWidth;
+
+            for (int x = left; x < bandMinX; x++) {
+              if ((pixels[row + x] >>> 24) != 0) {
+                bandMinX = x;
+                break;
+              }
+            }
+
+            for (int x = right; x > bandMaxX; x--) {
+              if ((pixels[row + x] >>> 24) != 0) {
+                bandMaxX = x;
+                break;
+              }
+            }
+          }
+
+          mergedMinX.accumulateAndGet(bandMinX, Math::min);
+          mergedMaxX.accumulateAndGet(bandMaxX, Math::max);
+        });
+
+    return new int[] {mergedMinX.get(), minY, mergedMaxX.get(), maxY};
+  }
+
+  private static boolean hasOpaquePixel(int[] pixels, int row, int fromX, int toX) {
+    for (int x = fromX; x < toX; x++) if ((pixels[row + x] >>> 24) != 0) return true;
+
+    return false;
+  }
+
+  /*
+   * Compose the token from the layers currently shown. The layers are composed in software with the
+   * TokenCompositor and the portrait blur & glow by LayerEffects, any other effect needs a snapshot
+   * of the scene graph.
+   */
   public static Image composePreview(
       StackPane compositeTokenPane,
       ImageView backgroundImageView,
@@ -271,9 +447,310 @@ public static Image composePreview(
       ImageView overlayImageView,
       boolean useAsBase,
       boolean clipImage) {
+    TokenRenderSnapshot snapshot =
+        createRenderSnapshot(
+            compositeTokenPane,
+            backgroundImageView,
+            bgColor,
+            portraitImageView,
+            maskImageView,
+            overlayImageView,
+            useAsBase,
+            clipImage);
+
+    if (snapshot == null)
+      return snapshotPreview(
+          compositeTokenPane,
+          backgroundImageView,
+          bgColor,
+          portraitImageView,
+          maskImageView,
+          overlayImageView,
+          useAsBase,
+          clipImage);
+
+    return renderToken(snapshot);
+  }
+
+  /**
+   * Capture the layers currently shown so the token can be rendered on another thread. Must be
+   * called on the JavaFX Application Thread.
+   *
+   * @return the captured layers, or null if a layer has an effect other than a portrait blur/glow
+   */
+  public static TokenRenderSnapshot createRenderSnapshot(
+      StackPane compositeTokenPane,
+      ImageView backgroundImageView,
+      Color bgColor,
+      ImageView portraitImageView,
+      ImageView maskImageView,
+      ImageView overlayImageView,
+      boolean useAsBase,
+      boolean clipImage) {
 
     // Process layout as maskImage may have changed size if the overlay was changed
     compositeTokenPane.layout();
+
+    double[] portraitEffects = getBlurAndGlow(portraitImageView.getEffect());
+    if (portraitEffects == null || hasVisibleEffect(backgroundImageView.getEffect())) return null;
+
+    // check if there is a mask image
+    if (maskImageView.getFitWidth() <= 0 || maskImageView.getFitHeight() <= 0) clipImage = false;
+
+    // Layers are placed relative to the mask when clipping, otherwise relative to the whole pane
+    Node reference;
+    int width, height;
+    if (clipImage) {
+      reference = maskImageView;
+      width = (int) maskImageView.getFitWidth();
+      height = (int) maskImageView.getFitHeight();
+    } else {
+      reference = compositeTokenPane;
+      width = (int) Math.ceil(compositeTokenPane.getWidth());
+      height = (int) Math.ceil(compositeTokenPane.getHeight());
+    }
+
+    TokenCompositor.Layer maskLayer = clipImage ? getLayer(maskImageView, reference) : null;
+    if (maskLayer == null) clipImage = false;
+
+    return new TokenRenderSnapshot(
+        width,
+        height,
+        bgColor,
+        getLayer(backgroundImageView, reference),
+        getLayer(portraitImageView, reference),
+        maskLayer,
+        getLayer(overlayImageView, reference),
+        portraitEffects[0],
+        portraitEffects[1],
+        getEffectScale(portraitImageView),
+        useAsBase,
+        clipImage);
+  }
+
+  /**
+   * Render and crop the token for captured layers. Safe to call from any thread. Portrait effects
+   * are rendered in software by {@link LayerEffects}.
+   *
+   * @param snapshot the captured layers
+   * @return the token, cropped to its non-transparent pixels
+   */
+  public static Image renderToken(TokenRenderSnapshot snapshot) {
+    int width = snapshot.getWidth();
+    int height = snapshot.getHeight();
+    if (width <= 0 || height <= 0) return new WritableImage(1, 1);
+
+    // A clipped token can't show anything outside of the mask & overlay bounds, cached per overlay
+    // and size, so cropping only has to look inside them
+    int[] cropRegion = new int[] {0, 0, width - 1, height - 1};
+    if (snapshot.isClipImage()) {
+      cropRegion =
+          TokenCompositor.getClipBounds(width, height, snapshot.getMask(), snapshot.getOverlay());
+      if (cropRegion == null) return new WritableImage(1, 1);
+    }
+
+    int[] tokenPixels =
+        TokenCompositor.compose(
+            width,
+            height,
+            snapshot.getBackgroundColor(),
+            snapshot.getBackground(),
+            LayerEffects.applyBlurAndGlow(
+                snapshot.getPortrait(),
+                snapshot.getPortraitBlurRadius(),
+                snapshot.getPortraitGlowLevel(),
+                snapshot.getPortraitEffectScale()),
+            snapshot.getMask(),
+            snapshot.getOverlay(),
+            snapshot.isUseAsBase(),
+            snapshot.isClipImage());
+
+    // Last, we'll clean up any excess transparent edges by cropping it
+    Image finalImage = cropPremultiplied(tokenPixels, width, cropRegion);
+    RasterBufferPool.returnPixels(tokenPixels);
+
+    return finalImage;
+  }
+
+  /*
+   * A layer for the image shown in an ImageView, transformed from image pixels to the local
+   * coordinates of the reference node
+   */
+  private static TokenCompositor.Layer getLayer(ImageView imageView, Node reference) {
+    Image image = imageView.getImage();
+    if (image == null || image.getWidth() <= 0 || image.getHeight() <= 0) return null;
+
+    // ImageView local coordinates relative to the reference node, through any scroll, translate,
+    // scale or rotate in between
+    Transform viewToReference;
+    try {
+      viewToReference =
+          reference
+              .getLocalToSceneTransform()
+              .createInverse()
+              .createConcatenation(imageView.getLocalToSceneTransform());
+    } catch (NonInvertibleTransformException e) {
+      return null;
+    }
+
+    // The image, or its viewport, is stretched over the ImageView's layout bounds
+    Rectangle2D viewport = imageView.getViewport();
+    double sourceX = viewport == null ? 0 : viewport.getMinX();
+    double sourceY = viewport == null ? 0 : viewport.getMinY();
+    double sourceWidth = viewport == null ? image.getWidth() : viewport.getWidth();
+    double sourceHeight = viewport == null ? image.getHeight() : viewport.getHeight();
+    Bounds bounds = imageView.getLayoutBounds();
+
+    AffineTransform transform =
+        new AffineTransform(
+            viewToReference.getMxx(),
+            viewToReference.getMyx(),
+            viewToReference.getMxy(),
+            viewToReference.getMyy(),
+            viewToReference.getTx(),
+            viewToReference.getTy());
+    transform.translate(bounds.getMinX(), bounds.getMinY());
+    transform.scale(bounds.getWidth() / sourceWidth, bounds.getHeight() / sourceHeight);
+    transform.translate(-sourceX, -sourceY);
+
+    return new TokenCompositor.Layer(
+        image, transform, imageView.getOpacity(), getAncestorClip(imageView, reference));
+  }
+
+  /*
+   * The intersection of every clip between the node and the nearest ancestor it shares with the
+   * reference node, eg the viewport of the portrait's ScrollPane, in the reference node's local
+   * coordinates. Null if nothing is clipped.
+   */
+  private static Rectangle2D getAncestorClip(Node node, Node reference) {
+    Bounds clipBounds = null;
+
+    for (Node parent = node.getParent();
+        parent != null && !isAncestor(parent, reference);
+        parent = parent.getParent()) {
+      if (parent.getClip() == null) continue;
+
+      // Clips are rectangles, their bounds are the clip
+      Bounds bounds =
+          reference.sceneToLocal(parent.localToScene(parent.getClip().getBoundsInLocal()));
+      if (clipBounds == null) {
+        clipBounds = bounds;
+      } else {
+        double minX = Math.max(clipBounds.getMinX(), bounds.getMinX());
+        double minY = Math.max(clipBounds.getMinY(), bounds.getMinY());
+        double maxX = Math.min(clipBounds.getMaxX(), bounds.getMaxX());
+        double maxY = Math.min(clipBounds.getMaxY(), bounds.getMaxY());
+        clipBounds =
+            new BoundingBox(minX, minY, Math.max(0, maxX - minX), Math.max(0, maxY - minY));
+      }
+    }
+
+    if (clipBounds == null) return null;
+
+    return new Rectangle2D(
+        clipBounds.getMinX(), clipBounds.getMinY(), clipBounds.getWidth(), clipBounds.getHeight());
+  }
+
+  private static boolean isAncestor(Node ancestor, Node node) {
+    for (Node parent = node; parent != null; parent = parent.getParent())
+      if (parent == ancestor) return true;
+
+    return false;
+  }
+
+  /*
+   * Effects are applied in the ImageView's local coordinates, this is how many image pixels there
+   * are to each of those units
+   */
+  private static double getEffectScale(ImageView imageView) {
+    Image image = imageView.getImage();
+    Bounds bounds = imageView.getLayoutBounds();
+    if (image == null || bounds.getWidth() <= 0 || bounds.getHeight() <= 0) return 1;
+
+    Rectangle2D viewport = imageView.getViewport();
+    double sourceWidth = viewport == null ? image.getWidth() : viewport.getWidth();
+    double sourceHeight = viewport == null ? image.getHeight() : viewport.getHeight();
+
+    return Math.sqrt((sourceWidth / bounds.getWidth()) * (sourceHeight / bounds.getHeight()));
+  }
+
+  /*
+   * The blur radius and glow level of a blur/glow effect chain, or null if there is any other effect
+   */
+  private static double[] getBlurAndGlow(Effect effect) {
+    double blurRadius = 0, glowLevel = 0;
+
+    while (effect != null) {
+      if (effect instanceof GaussianBlur) {
+        blurRadius = Math.max(blurRadius, ((GaussianBlur) effect).getRadius());
+        effect = ((GaussianBlur) effect).getInput();
+      } else if (effect instanceof Glow) {
+        glowLevel = Math.max(glowLevel, ((Glow) effect).getLevel());
+        effect = ((Glow) effect).getInput();
+      } else {
+        return null;
+      }
+    }
+
+    return new double[] {blurRadius, glowLevel};
+  }
+
+  private static boolean hasVisibleEffect(Effect effect) {
+    if (effect == null) return false;
+
+    if (effect instanceof GaussianBlur) {
+      GaussianBlur blur = (GaussianBlur) effect;
+      return blur.getRadius() > 0 || hasVisibleEffect(blur.getInput());
+    }
+
+    if (effect instanceof Glow) {
+      Glow glow = (Glow) effect;
+      return glow.getLevel() > 0 || hasVisibleEffect(glow.getInput());
+    }
+
+    return true;
+  }
+
+  /*
+   * Crop premultiplied pixels to the smallest width/height based on transparency, the same as
+   * autoCropImage. Only the region is looked at, everything outside of it must be transparent.
+   */
+  private static Image cropPremultiplied(int[] pixels, int width, int[] region) {
+    int[] bounds = getOpaqueBounds(pixels, width, region);
+    if (bounds == null) return new WritableImage(1, 1);
+
+    int minX = bounds[0], minY = bounds[1], maxX = bounds[2], maxY = bounds[3];
+    if (maxX - minX <= 0 || maxY - minY <= 0) return new WritableImage(1, 1);
+
+    WritableImage croppedImage = new WritableImage(maxX - minX, maxY - minY);
+    croppedImage
+        .getPixelWriter()
+        .setPixels(
+            0,
+            0,
+            maxX - minX,
+            maxY - minY,
+            PixelFormat.getIntArgbPreInstance(),
+            pixels,
+            minY * width + minX,
+            width);
+
+    return croppedImage;
+  }
+
+  /*
+   * The original scene graph composite, taking snapshots of the ImageViews. The software render is
+   * tested against it.
+   */
+  static Image snapshotPreview(
+      StackPane compositeTokenPane,
+      ImageView backgroundImageView,
+      Color bgColor,
+      ImageView portraitImageView,
+      ImageView maskImageView,
+      ImageView overlayImageView,
+      boolean useAsBase,
+      boolean clipImage) {
     SnapshotParameters parameter = new SnapshotParameters();
     Image finalImage = null;
     Group blend;
@@ -294,9 +771,10 @@ public static Image composePreview(
 
       Rectangle2D viewPort = new Rectangle2D(x, y, width, height);
       Rectangle2D maskViewPort = new Rectangle2D(1, 1, width, height);
-      WritableImage newBackgroundImage = new WritableImage((int) width, (int) height);
-      WritableImage newImage = new WritableImage((int) width, (int) height);
-      WritableImage newMaskImage = new WritableImage((int) width, (int) height);
+      // This runs on every drag event, the working images are pooled rather than allocated
+      WritableImage newBackgroundImage = RasterBufferPool.borrowImage((int) width, (int) height);
+      WritableImage newImage = RasterBufferPool.borrowImage((int) width, (int) height);
+      WritableImage newMaskImage = RasterBufferPool.borrowImage((int) width, (int) height);
 
       ImageView newBackgroundImageView = new ImageView();
       ImageView overlayCopyImageView = new ImageView();
@@ -316,14 +794,25 @@ public static Image composePreview(
 
       clippedImageView.setFitWidth(width);
       clippedImageView.setFitHeight(height);
-      clippedImageView.setImage(clipImageWithMask(newImage, newMaskImage));
-      newBackgroundImageView.setImage(clipImageWithMask(newBackgroundImage, newMaskImage));
+      WritableImage clippedImage = clipImageWithMask(newImage, newMaskImage);
+      WritableImage clippedBackgroundImage = clipImageWithMask(newBackgroundImage, newMaskImage);
+      clippedImageView.setImage(clippedImage);
+      newBackgroundImageView.setImage(clippedBackgroundImage);
+
+      RasterBufferPool.returnImage(newBackgroundImage);
+      RasterBufferPool.returnImage(newImage);
+      RasterBufferPool.returnImage(newMaskImage);
 
       // Our masked portrait image is now stored in clippedImageView, lets now blend the overlay
       // image over it
       // We'll create a temporary group to hold our temporary ImageViews's and blend them and take a
       // snapshot
-      overlayCopyImageView.setImage(overlayImageView.getImage());
+      // Scale the overlay in software so large overlays are averaged down rather than sampled
+      overlayCopyImageView.setImage(
+          getScaledOverlay(
+              overlayImageView.getImage(),
+              overlayImageView.getFitWidth(),
+              overlayImageView.getFitHeight()));
       overlayCopyImageView.setFitWidth(overlayImageView.getFitWidth());
       overlayCopyImageView.setFitHeight(overlayImageView.getFitHeight());
       overlayCopyImageView.setOpacity(overlayImageView.getOpacity());
@@ -334,8 +823,15 @@ public static Image composePreview(
         blend = new Group(newBackgroundImageView, clippedImageView, overlayCopyImageView);
       }
 
-      // Last, we'll clean up any excess transparent edges by cropping it
-      finalImage = autoCropImage(blend.snapshot(parameter, null));
+      // Last, we'll clean up any excess transparent edges by cropping it, cropping copies the
+      // pixels
+      // so every working image can go back to the pool
+      WritableImage blendImage = RasterBufferPool.borrowImage((int) width, (int) height);
+      finalImage = autoCropImage(blend.snapshot(parameter, blendImage));
+
+      RasterBufferPool.returnImage(blendImage);
+      RasterBufferPool.returnImage(clippedImage);
+      RasterBufferPool.returnImage(clippedBackgroundImage);
     } else {
       parameter.setFill(Color.TRANSPARENT);
       finalImage = autoCropImage(compositeTokenPane.snapshot(parameter, null));
@@ -344,6 +840,23 @@ public static Image composePreview(
     return finalImage;
   }
 
+  /*
+   * The last overlay scaled for a preview is kept as the same overlay & size is composed on every
+   * portrait change
+   */
+  private static Image getScaledOverlay(Image overlayImage, double fitWidth, double fitHeight) {
+    if (overlayImage == null || fitWidth <= 0 || fitHeight <= 0) return overlayImage;
+
+    if (overlayImage != scaledOverlaySource
+        || Math.round(fitWidth) != scaledOverlay.getWidth()
+        || Math.round(fitHeight) != scaledOverlay.getHeight()) {
+      scaledOverlay = scaleImage(overlayImage, fitWidth, fitHeight, false);
+      scaledOverlaySource = overlayImage;
+    }
+
+    return scaledOverlay;
+  }
+
   public static double getScaleXRatio(ImageView imageView) {
     return imageView.getBoundsInParent().getWidth() / imageView.getImage().getWidth();
   }
@@ -356,40 +869,63 @@ public static double getScaleYRatio(ImageView imageView) {
    * This is for Legacy support but can cause magenta bleed on edges if there is transparency overlap. The preferred overlay storage is now PhotoShop PSD format with layer 1 containing the mask and
    * layer 2 containing the image
    */
-  private static Image processMagenta(Image inputImage, int colorThreshold, boolean overlayWanted) {
-    int imageWidth = (int) inputImage.getWidth();
-    int imageHeight = (int) inputImage.getHeight();
-
-    WritableImage outputImage = new WritableImage(imageWidth, imageHeight);
-    PixelReader pixelReader = inputImage.getPixelReader();
-    PixelWriter pixelWriter = outputImage.getPixelWriter();
+  private static Image processMagenta(Image inputImage, boolean overlayWanted) {
+    Image[] layers = splitMagenta(inputImage);
+    if (overlayWanted) return layers[1];
 
-    for (int readY = 0; readY < imageHeight; readY++) {
-      for (int readX = 0; readX < imageWidth; readX++) {
-        Color pixelColor = pixelReader.getColor(readX, readY);
-
-        if (isMagenta(pixelColor, COLOR_THRESHOLD) == overlayWanted)
-          pixelWriter.setColor(readX, readY, Color.TRANSPARENT);
-        else pixelWriter.setColor(readX, readY, pixelColor);
-      }
-    }
+    // Without any magenta nothing is masked
+    if (layers[0] == null)
+      return new WritableImage((int) inputImage.getWidth(), (int) inputImage.getHeight());
 
-    return outputImage;
+    return layers[0];
   }
 
-  // Using some fudge factor...
-  private static boolean isMagenta(Color color, int fudge) {
-    if (color.equals(Color.MAGENTA)) return true;
-
-    double r = color.getRed();
-    double g = color.getGreen();
-    double b = color.getBlue();
-
-    if (Math.abs(r - b) > fudge) return false;
-
-    if (g > r - fudge || g > b - fudge) return false;
+  /*
+   * Split a legacy magenta overlay into the mask (index 0) and the overlay (index 1) with a single
+   * pass over the raster. Magenta pixels go to the mask, everything else to the overlay. If there is
+   * no magenta at all the mask is null and the overlay is the input image.
+   */
+  static Image[] splitMagenta(Image inputImage) {
+    int imageWidth = (int) inputImage.getWidth();
+    int imageHeight = (int) inputImage.getHeight();
+    WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
 
-    return true;
+    // The overlay is keyed in place, the mask starts out fully transparent
+    int[] overlayPixels = new int[imageWidth * imageHeight];
+    int[] maskPixels = new int[overlayPixels.length];
+    RasterExecutor.readPixels(inputImage, overlayPixels, imageWidth, imageHeight);
+
+    int fudge = COLOR_THRESHOLD * 255;
+    AtomicBoolean keyed = new AtomicBoolean();
+    RasterExecutor.forEachRowBand(
+        imageWidth,
+        imageHeight,
+        (fromRow, toRow) -> {
+          RasterKernels.get()
+              .keyMagenta(
+                  overlayPixels, maskPixels, fudge, fromRow * imageWidth, toRow * imageWidth);
+
+          for (int i = fromRow * imageWidth; i < toRow * imageWidth; i++) {
+            if (maskPixels[i] != 0) {
+              keyed.set(true);
+              break;
+            }
+          }
+        });
+
+    if (!keyed.get()) return new Image[] {null, inputImage};
+
+    WritableImage maskImage = new WritableImage(imageWidth, imageHeight);
+    maskImage
+        .getPixelWriter()
+        .setPixels(0, 0, imageWidth, imageHeight, format, maskPixels, 0, imageWidth);
+
+    WritableImage overlayImage = new WritableImage(imageWidth, imageHeight);
+    overlayImage
+        .getPixelWriter()
+        .setPixels(0, 0, imageWidth, imageHeight, format, overlayPixels, 0, imageWidth);
+
+    return new Image[] {maskImage, overlayImage};
   }
 
   public static String getFileType(File imageFile) {
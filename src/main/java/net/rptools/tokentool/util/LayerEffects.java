@@ -0,0 +1,399 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.awt.geom.AffineTransform;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import net.rptools.tokentool.util.TokenCompositor.Layer;
+
+/**
+ * Software versions of the portrait's {@link javafx.scene.effect.Glow} and {@link
+ * javafx.scene.effect.GaussianBlur} effects, applied to a {@link Layer} image rather than to the
+ * scene graph so they are safe to run on any thread.
+ *
+ * <p>The Gaussian blur is approximated by three box blurs along each axis, every pass is a running
+ * sum so the cost doesn't depend on the radius. Passes run over bands of rows, then of columns, in
+ * parallel, see {@link RasterExecutor}. The effect image only depends on the layer image, how much
+ * it is shrunk, the blur radius and glow level so a few are cached, moving or rotating a blurred
+ * portrait reuses it.
+ */
+public class LayerEffects {
+  // The radius of the blur the JavaFX Glow adds over its input
+  private static final double GLOW_RADIUS = 10;
+
+  // Rows or columns blurred together, a few lines keep each read of a column band in the cache
+  private static final int BLUR_LINES = 16;
+
+  // A blur or glow slider being dragged creates a new effect image for every value
+  private static final int MAX_CACHED_EFFECTS = 4;
+  private static final Map<EffectKey, Effect> effectCache =
+      new LinkedHashMap<EffectKey, Effect>(16, 0.75f, true) {
+        private static final long serialVersionUID = 2290857106472635913L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<EffectKey, Effect> eldest) {
+          return size() > MAX_CACHED_EFFECTS;
+        }
+      };
+
+  /**
+   * Apply a glow then a blur to a layer, the same chain as a GaussianBlur with a Glow input. The
+   * radii are in the units the effects were set in, the local coordinates of the ImageView.
+   *
+   * @param layer the layer, may be null
+   * @param blurRadius the GaussianBlur radius, 0 for no blur
+   * @param glowLevel the Glow level from 0 to 1.0, 0 for no glow
+   * @param effectScale layer image pixels per unit of blurRadius
+   * @return a layer drawing the effect image in the same place, or layer if there is no effect
+   */
+  public static Layer applyBlurAndGlow(
+      Layer layer, double blurRadius, double glowLevel, double effectScale) {
+    if (layer == null || layer.getImage() == null) return layer;
+    if (blurRadius <= 0 && glowLevel <= 0) return layer;
+
+    Image image = layer.getImage();
+    int imageWidth = (int) image.getWidth();
+    int imageHeight = (int) image.getHeight();
+    AffineTransform transform = layer.getTransform();
+
+    // Layers drawn at half size or less are shrunk first, there's no need to blur pixels that are
+    // averaged away when the layer is drawn
+    int width =
+        imageWidth
+            >> TokenCompositor.getShrinkLevel(
+                Math.hypot(transform.getScaleX(), transform.getShearY()));
+    int height =
+        imageHeight
+            >> TokenCompositor.getShrinkLevel(
+                Math.hypot(transform.getShearX(), transform.getScaleY()));
+    width = Math.max(width, 1);
+    height = Math.max(height, 1);
+
+    double pixelScale =
+        effectScale * Math.sqrt(((double) width / imageWidth) * height / imageHeight);
+    EffectKey key =
+        new EffectKey(image, width, height, blurRadius * pixelScale, glowLevel, pixelScale);
+
+    Effect effect;
+    synchronized (effectCache) {
+      effect = effectCache.get(key);
+    }
+
+    if (effect == null) {
+      effect = createEffect(key);
+      synchronized (effectCache) {
+        effectCache.put(key, effect);
+      }
+    }
+
+    if (width != imageWidth || height != imageHeight)
+      transform.scale((double) imageWidth / width, (double) imageHeight / height);
+    transform.translate(-effect.padding, -effect.padding);
+
+    return new Layer(effect.image, transform, layer.getOpacity(), layer.getClip());
+  }
+
+  private static Effect createEffect(EffectKey key) {
+    int imageWidth = (int) key.image.getWidth();
+    int imageHeight = (int) key.image.getHeight();
+    int width = key.width, height = key.height;
+
+    int[] pixels = new int[imageWidth * imageHeight];
+    RasterExecutor.readPixels(key.image, pixels, imageWidth, imageHeight);
+
+    if (width != imageWidth || height != imageHeight)
+      pixels = ImageResampler.resample(pixels, imageWidth, imageHeight, width, height);
+
+    int[] premultiplied = pixels;
+    RasterExecutor.forEachRowBand(
+        width,
+        height,
+        (fromRow, toRow) -> {
+          for (int i = fromRow * width; i < toRow * width; i++)
+            premultiplied[i] = RasterKernels.premultiply(premultiplied[i]);
+        });
+
+    // Glow adds its own blur over the image, cropped to the image
+    if (key.glowLevel > 0) {
+      int[] glowPixels = RasterBufferPool.borrowPixels(pixels.length);
+      System.arraycopy(pixels, 0, glowPixels, 0, pixels.length);
+      gaussianBlur(glowPixels, width, height, GLOW_RADIUS * key.pixelScale);
+      addGlow(pixels, glowPixels, width, height, key.glowLevel);
+      RasterBufferPool.returnPixels(glowPixels);
+    }
+
+    // The blur spreads past the edges of the image, the effect image is padded to fit it all
+    int[] boxRadii = getBoxRadii(key.blurRadius / 3);
+    int padding = boxRadii[0] + boxRadii[1] + boxRadii[2];
+    int paddedWidth = width + 2 * padding;
+    int paddedHeight = height + 2 * padding;
+
+    int[] paddedPixels = new int[paddedWidth * paddedHeight];
+    for (int y = 0; y < height; y++)
+      System.arraycopy(
+          pixels, y * width, paddedPixels, (y + padding) * paddedWidth + padding, width);
+
+    if (padding > 0) gaussianBlur(paddedPixels, paddedWidth, paddedHeight, key.blurRadius);
+
+    WritableImage effectImage = new WritableImage(paddedWidth, paddedHeight);
+    effectImage
+        .getPixelWriter()
+        .setPixels(
+            0,
+            0,
+            paddedWidth,
+            paddedHeight,
+            PixelFormat.getIntArgbPreInstance(),
+            paddedPixels,
+            0,
+            paddedWidth);
+
+    return new Effect(effectImage, padding);
+  }
+
+  /*
+   * Blur premultiplied pixels in place with three box blurs along each axis, first along the rows
+   * then along the columns. Each band of rows or columns is blurred a few lines at a time in scratch
+   * buffers from the RasterBufferPool, where every channel is kept to 16 bits so the faint tails of
+   * a wide blur aren't rounded away by the passes.
+   */
+  private static void gaussianBlur(int[] pixels, int width, int height, double radius) {
+    // JavaFX uses a kernel of 2 * radius + 1 with a standard deviation of radius / 3
+    int[] boxRadii = getBoxRadii(radius / 3);
+
+    // Rows and columns share the scratch size so the blur only adds one size to the pool
+    int scratchLength = 2 * BLUR_LINES * Math.max(width, height);
+
+    RasterExecutor.forEachRowBand(
+        width,
+        height,
+        (fromRow, toRow) ->
+            blurLines(pixels, fromRow, toRow, width, width, 1, boxRadii, scratchLength));
+    RasterExecutor.forEachRowBand(
+        height,
+        width,
+        (fromColumn, toColumn) ->
+            blurLines(pixels, fromColumn, toColumn, height, 1, width, boxRadii, scratchLength));
+  }
+
+  /*
+   * The radii of three box blurs that together approximate a Gaussian blur
+   */
+  private static int[] getBoxRadii(double sigma) {
+    double idealWidth = Math.sqrt(4 * sigma * sigma + 1);
+    int lowerWidth = (int) Math.floor(idealWidth);
+    if (lowerWidth % 2 == 0) lowerWidth--;
+
+    // How many of the boxes are the lower width, the rest are 2 wider
+    int lowerCount =
+        (int)
+            Math.round(
+                (12 * sigma * sigma - 3 * lowerWidth * lowerWidth - 12 * lowerWidth - 9)
+                    / (-4.0 * lowerWidth - 4));
+
+    int[] radii = new int[3];
+    for (int i = 0; i < radii.length; i++)
+      radii[i] = ((i < lowerCount ? lowerWidth : lowerWidth + 2) - 1) / 2;
+
+    return radii;
+  }
+
+  /*
+   * Blur the lines, rows or columns, from fromLine to toLine. A line starts at line * lineStep and
+   * its pixels are pixelStep apart. In the scratch buffers every pixel is two ints, alpha & red then
+   * green & blue, with 16 bits per channel.
+   */
+  private static void blurLines(
+      int[] pixels,
+      int fromLine,
+      int toLine,
+      int length,
+      int lineStep,
+      int pixelStep,
+      int[] boxRadii,
+      int scratchLength) {
+    int[] first = RasterBufferPool.borrowPixels(scratchLength);
+    int[] second = RasterBufferPool.borrowPixels(scratchLength);
+
+    for (int line0 = fromLine; line0 < toLine; line0 += BLUR_LINES) {
+      int lines = Math.min(BLUR_LINES, toLine - line0);
+
+      // Lines next to each other are read together, for columns that is a run of each row
+      for (int i = 0; i < length; i++) {
+        for (int line = 0; line < lines; line++) {
+          int pixel = pixels[(line0 + line) * lineStep + i * pixelStep];
+          int index = 2 * (line * length + i);
+          first[index] = ((pixel >>> 24) << 24) | (((pixel >>> 16) & 0xff) << 8);
+          first[index + 1] = (((pixel >>> 8) & 0xff) << 24) | ((pixel & 0xff) << 8);
+        }
+      }
+
+      for (int line = 0; line < lines; line++) {
+        int offset = 2 * line * length;
+        boxBlur(first, second, offset, length, boxRadii[0]);
+        boxBlur(second, first, offset, length, boxRadii[1]);
+        boxBlur(first, second, offset, length, boxRadii[2]);
+      }
+
+      for (int i = 0; i < length; i++) {
+        for (int line = 0; line < lines; line++) {
+          int index = 2 * (line * length + i);
+          int high = second[index], low = second[index + 1];
+          pixels[(line0 + line) * lineStep + i * pixelStep] =
+              (to8Bits(high >>> 16) << 24)
+                  | (to8Bits(high & 0xffff) << 16)
+                  | (to8Bits(low >>> 16) << 8)
+                  | to8Bits(low & 0xffff);
+        }
+      }
+    }
+
+    RasterBufferPool.returnPixels(first);
+    RasterBufferPool.returnPixels(second);
+  }
+
+  /*
+   * Box blur one line of 16 bit channels with a running sum, pixels past the ends of the line are
+   * transparent
+   */
+  private static void boxBlur(int[] source, int[] target, int offset, int length, int radius) {
+    int size = 2 * radius + 1;
+
+    // Dividing by the size as a multiply
+    long scale = ((1L << 32) + size / 2) / size;
+
+    long sum3 = 0, sum2 = 0, sum1 = 0, sum0 = 0;
+    for (int x = 0; x < Math.min(radius, length - 1) + 1; x++) {
+      int high = source[offset + 2 * x], low = source[offset + 2 * x + 1];
+      sum3 += high >>> 16;
+      sum2 += high & 0xffff;
+      sum1 += low >>> 16;
+      sum0 += low & 0xffff;
+    }
+
+    for (int x = 0; x < length; x++) {
+      target[offset + 2 * x] = (divide(sum3, scale) << 16) | divide(sum2, scale);
+      target[offset + 2 * x + 1] = (divide(sum1, scale) << 16) | divide(sum0, scale);
+
+      if (x + radius + 1 < length) {
+        int next = offset + 2 * (x + radius + 1);
+        sum3 += source[next] >>> 16;
+        sum2 += source[next] & 0xffff;
+        sum1 += source[next + 1] >>> 16;
+        sum0 += source[next + 1] & 0xffff;
+      }
+
+      if (x - radius >= 0) {
+        int last = offset + 2 * (x - radius);
+        sum3 -= source[last] >>> 16;
+        sum2 -= source[last] & 0xffff;
+        sum1 -= source[last + 1] >>> 16;
+        sum0 -= source[last + 1] & 0xffff;
+      }
+    }
+  }
+
+  private static int divide(long sum, long scale) {
+    return (int) Math.min(0xffff, (sum * scale + (1L << 31)) >>> 32);
+  }
+
+  private static int to8Bits(int channel) {
+    return Math.min(255, (channel + 128) >>> 8);
+  }
+
+  /*
+   * An ADD blend of the glow over the pixels at the glow level, both premultiplied
+   */
+  private static void addGlow(
+      int[] pixels, int[] glowPixels, int width, int height, double glowLevel) {
+    int level = (int) Math.round(Math.min(glowLevel, 1) * 256);
+
+    RasterExecutor.forEachRowBand(
+        width,
+        height,
+        (fromRow, toRow) -> {
+          for (int i = fromRow * width; i < toRow * width; i++) {
+            int pixel = pixels[i], glow = glowPixels[i];
+            int result = 0;
+
+            for (int shift = 0; shift < 32; shift += 8) {
+              int channel =
+                  ((pixel >>> shift) & 0xff) + ((((glow >>> shift) & 0xff) * level + 128) >>> 8);
+              result |= Math.min(255, channel) << shift;
+            }
+
+            pixels[i] = result;
+          }
+        });
+  }
+
+  private static class Effect {
+    final Image image;
+    final int padding;
+
+    Effect(Image image, int padding) {
+      this.image = image;
+      this.padding = padding;
+    }
+  }
+
+  /*
+   * The layer image by identity, the size it is shrunk to and the effect in shrunk image pixels
+   */
+  private static class EffectKey {
+    final Image image;
+    final int width, height;
+    final double blurRadius, glowLevel, pixelScale;
+
+    EffectKey(
+        Image image,
+        int width,
+        int height,
+        double blurRadius,
+        double glowLevel,
+        double pixelScale) {
+      this.image = image;
+      this.width = width;
+      this.height = height;
+      this.blurRadius = blurRadius;
+      this.glowLevel = glowLevel;
+      this.pixelScale = pixelScale;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof EffectKey)) return false;
+
+      EffectKey other = (EffectKey) obj;
+      return image == other.image
+          && width == other.width
+          && height == other.height
+          && Double.compare(blurRadius, other.blurRadius) == 0
+          && Double.compare(glowLevel, other.glowLevel) == 0
+          && Double.compare(pixelScale, other.pixelScale) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          System.identityHashCode(image), width, height, blurRadius, glowLevel, pixelScale);
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+import net.rptools.tokentool.AppConstants;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Legacy overlays mark their mask with magenta in a single image. The first time one is loaded it
+ * is split into separate mask and overlay PNGs under {@link AppConstants#CACHE_DIR}, later loads
+ * read those instead of keying the magenta again. Images without any magenta only get an empty
+ * marker file, their overlay is the image itself and nothing is masked.
+ *
+ * <p>The cached layers are named after the overlay path relative to {@link
+ * AppConstants#OVERLAY_DIR}, the same key as the thumbnail cache, and its last-modified time, so
+ * editing an overlay simply stops its old layers from being found. {@link
+ * #evictStale(OverlayManifest)} removes them.
+ */
+public class LegacyOverlayCache {
+  private static final Logger log = LogManager.getLogger(LegacyOverlayCache.class);
+
+  private static final File LEGACY_DIR = new File(AppConstants.CACHE_DIR, "legacy");
+  private static final String MASK_SUFFIX = "-mask.png";
+  private static final String OVERLAY_SUFFIX = "-overlay.png";
+  private static final String PLAIN_SUFFIX = "-plain";
+
+  /**
+   * Get the mask and overlay layers of a legacy overlay, splitting and caching them if needed.
+   *
+   * @param filePath the legacy overlay file
+   * @return the mask (index 0) and overlay (index 1), or null if the overlay could not be decoded
+   * @throws IOException if the overlay can not be read
+   */
+  public static Image[] getLayers(Path filePath) throws IOException {
+    String baseName = getBaseName(filePath);
+    File maskFile = new File(LEGACY_DIR, baseName + MASK_SUFFIX);
+    File overlayFile = new File(LEGACY_DIR, baseName + OVERLAY_SUFFIX);
+
+    if (new File(LEGACY_DIR, baseName + PLAIN_SUFFIX).exists()) {
+      Image image = new Image(filePath.toUri().toURL().toString());
+      if (image.isError()) {
+        log.error("Processing: " + filePath, image.getException());
+        return null;
+      }
+
+      return new Image[] {createEmptyMask(image), image};
+    }
+
+    if (maskFile.exists() && overlayFile.exists()) {
+      Image mask = new Image(maskFile.toURI().toString());
+      Image overlay = new Image(overlayFile.toURI().toString());
+
+      if (!mask.isError() && !overlay.isError()) return new Image[] {mask, overlay};
+
+      log.warn("Cached layers for " + filePath + " are unreadable, splitting again.");
+    }
+
+    return convert(filePath, baseName);
+  }
+
+  /**
+   * Get the cached file for one layer of a legacy overlay if it has already been split, this never
+   * splits the overlay itself. Lets callers decode the layer at a reduced size.
+   *
+   * @param filePath the legacy overlay file
+   * @param overlayWanted true for the overlay layer, false for the mask
+   * @return the cached layer file, the overlay file itself for the overlay of an image without
+   *     magenta, or null if the overlay hasn't been split
+   * @throws IOException if the overlay can not be read
+   */
+  public static File getLayerFile(Path filePath, boolean overlayWanted) throws IOException {
+    String baseName = getBaseName(filePath);
+
+    if (new File(LEGACY_DIR, baseName + PLAIN_SUFFIX).exists())
+      return overlayWanted ? filePath.toFile() : null;
+
+    File layerFile =
+        new File(LEGACY_DIR, baseName + (overlayWanted ? OVERLAY_SUFFIX : MASK_SUFFIX));
+
+    return layerFile.exists() ? layerFile : null;
+  }
+
+  /**
+   * Delete the cached layers of overlays that are no longer in the manifest or have changed since
+   * they were split, and any layer a crash left half written.
+   *
+   * @param manifest the current overlay manifest
+   */
+  public static void evictStale(OverlayManifest manifest) {
+    int deleted = OverlayCacheFiles.deleteStaleTempFiles(LEGACY_DIR);
+    if (deleted > 0) log.info("Deleted " + deleted + " unfinished legacy overlay layers.");
+
+    File[] layerFiles = LEGACY_DIR.listFiles();
+    if (layerFiles == null) return;
+
+    Set<String> current = new HashSet<>();
+    for (OverlayManifest.Entry entry : manifest.getOverlays())
+      if (entry.getType() == OverlayManifest.Type.IMAGE)
+        current.add(getBaseName(manifest.toPath(entry), entry.getLastModified()));
+
+    int evicted = 0;
+    for (File layerFile : layerFiles) {
+      // Only layers are evicted, temporary files may still be being written by another thread
+      if (!isLayerFile(layerFile)) continue;
+
+      if (!current.contains(getBaseName(layerFile))) {
+        FileUtils.deleteQuietly(layerFile);
+        evicted++;
+      }
+    }
+
+    if (evicted > 0) log.info("Evicted " + evicted + " stale legacy overlay layers.");
+  }
+
+  private static Image[] convert(Path filePath, String baseName) throws IOException {
+    Image image = new Image(filePath.toUri().toURL().toString());
+    if (image.isError()) {
+      log.error("Processing: " + filePath, image.getException());
+      return null;
+    }
+
+    Image[] layers = ImageUtil.splitMagenta(image);
+
+    try {
+      LEGACY_DIR.mkdirs();
+
+      // Nothing to split, only remember that so the magenta isn't looked for again
+      if (layers[0] == null) {
+        FileUtils.touch(new File(LEGACY_DIR, baseName + PLAIN_SUFFIX));
+        return new Image[] {createEmptyMask(image), image};
+      }
+
+      OverlayCacheFiles.writePng(layers[0], new File(LEGACY_DIR, baseName + MASK_SUFFIX));
+      OverlayCacheFiles.writePng(layers[1], new File(LEGACY_DIR, baseName + OVERLAY_SUFFIX));
+    } catch (IOException e) {
+      log.error("Unable to cache layers for " + filePath, e);
+    }
+
+    if (layers[0] == null) layers[0] = createEmptyMask(image);
+
+    return layers;
+  }
+
+  private static Image createEmptyMask(Image image) {
+    return new WritableImage((int) image.getWidth(), (int) image.getHeight());
+  }
+
+  private static String getBaseName(Path filePath) throws IOException {
+    return getBaseName(filePath, Files.getLastModifiedTime(filePath).toMillis());
+  }
+
+  private static String getBaseName(Path filePath, long lastModified) {
+    return OverlayCacheFiles.hash(OverlayCacheFiles.getKey(filePath)) + "-" + lastModified;
+  }
+
+  private static boolean isLayerFile(File file) {
+    String name = file.getName();
+
+    return name.endsWith(MASK_SUFFIX)
+        || name.endsWith(OVERLAY_SUFFIX)
+        || name.endsWith(PLAIN_SUFFIX);
+  }
+
+  private static String getBaseName(File layerFile) {
+    String name = layerFile.getName();
+
+    if (name.endsWith(MASK_SUFFIX)) return name.substring(0, name.length() - MASK_SUFFIX.length());
+    if (name.endsWith(OVERLAY_SUFFIX))
+      return name.substring(0, name.length() - OVERLAY_SUFFIX.length());
+    if (name.endsWith(PLAIN_SUFFIX))
+      return name.substring(0, name.length() - PLAIN_SUFFIX.length());
+
+    return name;
+  }
+}
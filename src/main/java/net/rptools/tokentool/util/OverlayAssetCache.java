@@ -0,0 +1,185 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javafx.scene.image.Image;
+import net.rptools.tokentool.AppConstants;
+import net.rptools.tokentool.AppPreferences;
+import net.rptools.tokentool.model.OverlayAsset;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Least recently used cache of decoded {@link OverlayAsset}s bounded by the memory the decoded
+ * layers use rather than by a number of overlays, so a few 2048px overlays count for as much as
+ * many small ones.
+ *
+ * <p>The budget is read from the {@link AppPreferences#OVERLAY_CACHE_SIZE} preference in MB and
+ * defaults to {@link AppConstants#DEFAULT_OVERLAY_CACHE_SIZE}, it is never allowed to be more than
+ * a quarter of the maximum heap. A cached overlay is only reused while the file's size and
+ * last-modified time are unchanged.
+ */
+public class OverlayAssetCache {
+  private static final Logger log = LogManager.getLogger(OverlayAssetCache.class);
+
+  private static final long BYTES_PER_MB = 1024 * 1024;
+  private static final long BYTES_PER_PIXEL = 4;
+
+  private static final Map<Path, CachedAsset> assets = new LinkedHashMap<>(16, 0.75f, true);
+  private static final Map<Path, FutureTask<OverlayAsset>> loading = new ConcurrentHashMap<>();
+  private static long maxBytes = getDefaultMaxBytes();
+  private static long currentBytes = 0;
+
+  private static class CachedAsset {
+    final OverlayAsset asset;
+    final long size;
+    final long lastModified;
+    final long bytes;
+
+    CachedAsset(OverlayAsset asset, long size, long lastModified) {
+      this.asset = asset;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.bytes = getBytes(asset.getMask()) + getBytes(asset.getOverlay());
+    }
+  }
+
+  /**
+   * Return the decoded overlay, only decoding it if it isn't cached or the file has changed.
+   *
+   * @param filePath the overlay file
+   * @return the decoded overlay, or null if the overlay could not be decoded
+   * @throws IOException if the overlay can not be read
+   */
+  public static OverlayAsset getAsset(Path filePath) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+    long size = attributes.size();
+    long lastModified = attributes.lastModifiedTime().toMillis();
+
+    synchronized (OverlayAssetCache.class) {
+      CachedAsset cached = assets.get(filePath);
+      if (cached != null && cached.size == size && cached.lastModified == lastModified)
+        return cached.asset;
+    }
+
+    // Decode outside of the lock so other overlays can still be served meanwhile. If the overlay is
+    // already being decoded, eg by the prefetcher, wait for that instead of decoding it twice.
+    FutureTask<OverlayAsset> task = new FutureTask<>(() -> OverlayAssetLoader.load(filePath));
+    FutureTask<OverlayAsset> loadingTask = loading.putIfAbsent(filePath, task);
+
+    if (loadingTask == null) {
+      loadingTask = task;
+
+      try {
+        task.run();
+      } finally {
+        loading.remove(filePath, task);
+      }
+    }
+
+    OverlayAsset asset;
+    try {
+      asset = loadingTask.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading " + filePath, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException("Error loading " + filePath, e.getCause());
+    }
+
+    if (asset != null && loadingTask == task)
+      put(filePath, new CachedAsset(asset, size, lastModified));
+
+    return asset;
+  }
+
+  /**
+   * Return the decoded overlay only if it is already cached, never touching the disk.
+   *
+   * @param filePath the overlay file
+   * @return the decoded overlay or null
+   */
+  public static synchronized OverlayAsset getCachedAsset(Path filePath) {
+    CachedAsset cached = assets.get(filePath);
+    return cached == null ? null : cached.asset;
+  }
+
+  /**
+   * Drop a decoded overlay, eg when the file was deleted or replaced.
+   *
+   * @param filePath the overlay file, or a directory to drop every overlay under it
+   */
+  public static synchronized void remove(Path filePath) {
+    Iterator<Map.Entry<Path, CachedAsset>> iterator = assets.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<Path, CachedAsset> entry = iterator.next();
+
+      if (entry.getKey().startsWith(filePath)) {
+        currentBytes -= entry.getValue().bytes;
+        iterator.remove();
+      }
+    }
+  }
+
+  private static synchronized void put(Path filePath, CachedAsset cached) {
+    CachedAsset previous = assets.remove(filePath);
+    if (previous != null) currentBytes -= previous.bytes;
+
+    // Something this large would only push everything else out
+    if (cached.bytes > maxBytes) {
+      log.debug("Overlay " + filePath + " is larger than the overlay cache, not caching.");
+      return;
+    }
+
+    assets.put(filePath, cached);
+    currentBytes += cached.bytes;
+    evict();
+  }
+
+  private static void evict() {
+    Iterator<CachedAsset> iterator = assets.values().iterator();
+
+    while (currentBytes > maxBytes && iterator.hasNext()) {
+      currentBytes -= iterator.next().bytes;
+      iterator.remove();
+    }
+  }
+
+  private static long getBytes(Image image) {
+    if (image == null) return 0;
+
+    return (long) image.getWidth() * (long) image.getHeight() * BYTES_PER_PIXEL;
+  }
+
+  private static long getDefaultMaxBytes() {
+    int megabytes =
+        AppPreferences.getPreference(
+            AppPreferences.OVERLAY_CACHE_SIZE, AppConstants.DEFAULT_OVERLAY_CACHE_SIZE);
+
+    return Math.min(megabytes * BYTES_PER_MB, Runtime.getRuntime().maxMemory() / 4);
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import com.twelvemonkeys.imageio.plugins.psd.PSDImageReader;
+import com.twelvemonkeys.imageio.plugins.psd.PSDMetadata;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import net.rptools.tokentool.model.OverlayAsset;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.w3c.dom.NodeList;
+
+/**
+ * Decodes an overlay into an {@link OverlayAsset}. A PSD is opened and its metadata parsed once,
+ * both the mask and overlay layers are read from the same reader.
+ */
+public class OverlayAssetLoader {
+  private static final Logger log = LogManager.getLogger(OverlayAssetLoader.class);
+
+  // Mask layer should always be layer 1 and overlay image on layer 2. Note, layer 0 will be a
+  // combined layer composite
+  private static final int MASK_IMAGE_INDEX = 1;
+  private static final int OVERLAY_IMAGE_INDEX = 2;
+
+  /**
+   * Decode the mask and overlay for an overlay file.
+   *
+   * @param filePath the overlay file
+   * @return the decoded overlay, or null if the overlay could not be decoded
+   * @throws IOException if the overlay can not be read
+   */
+  public static OverlayAsset load(Path filePath) throws IOException {
+    String fileURL = filePath.toUri().toURL().toString();
+
+    if (ImageUtil.SUPPORTED_IMAGE_FILE_FILTER.accept(null, fileURL)) return loadImage(filePath);
+    else if (ImageUtil.PSD_FILE_FILTER.accept(null, fileURL)) return loadPSD(filePath);
+
+    return null;
+  }
+
+  /*
+   * Legacy overlays use magenta to mark the mask in a single image, they are split once and the
+   * layers cached
+   */
+  private static OverlayAsset loadImage(Path filePath) throws IOException {
+    Image[] layers = LegacyOverlayCache.getLayers(filePath);
+    if (layers == null) return null;
+
+    int width = (int) layers[1].getWidth();
+    int height = (int) layers[1].getHeight();
+
+    return new OverlayAsset(filePath, layers[0], layers[1], width, height, 0, 0, 0, 0);
+  }
+
+  private static OverlayAsset loadPSD(Path filePath) throws IOException {
+    File file = filePath.toFile();
+    ImageInputStream is = null;
+    PSDImageReader reader = null;
+
+    try {
+      is = ImageIO.createImageInputStream(file);
+      if (is == null || is.length() == 0) {
+        log.info("Image from file " + file.getAbsolutePath() + " is null");
+      }
+
+      Iterator<ImageReader> iterator = ImageIO.getImageReaders(is);
+      if (iterator == null || !iterator.hasNext()) {
+        throw new IOException("Image file format not supported by ImageIO: " + filePath);
+      }
+
+      reader = (PSDImageReader) iterator.next();
+      reader.setInput(is);
+
+      BufferedImage maskBI = reader.read(MASK_IMAGE_INDEX);
+      BufferedImage overlayBI = reader.read(OVERLAY_IMAGE_INDEX);
+      if (maskBI == null || overlayBI == null) return null;
+
+      IIOMetadataNode root =
+          (IIOMetadataNode)
+              reader.getImageMetadata(0).getAsTree(PSDMetadata.NATIVE_METADATA_FORMAT_NAME);
+      NodeList layerInfos = root.getElementsByTagName("LayerInfo");
+
+      // Layer index corresponds to imageIndex - 1 in the reader
+      IIOMetadataNode maskInfo = (IIOMetadataNode) layerInfos.item(MASK_IMAGE_INDEX - 1);
+      IIOMetadataNode overlayInfo = (IIOMetadataNode) layerInfos.item(OVERLAY_IMAGE_INDEX - 1);
+
+      // Get the width & height of the PSD canvas so we can create both layers the same size
+      int width = reader.getWidth(0);
+      int height = reader.getHeight(0);
+
+      // Get layer offsets, PhotoShop PSD layers can have different widths/heights and all
+      // images start at 0,0 with a layer offset applied
+      int maskX = getOffset(maskInfo, "left");
+      int maskY = getOffset(maskInfo, "top");
+      int overlayX = getOffset(overlayInfo, "left");
+      int overlayY = getOffset(overlayInfo, "top");
+
+      // Lets pad the layers with transparency to make them the same size as the PSD canvas size
+      return new OverlayAsset(
+          filePath,
+          ImageUtil.resizeCanvas(SwingFXUtils.toFXImage(maskBI, null), width, height, maskX, maskY),
+          ImageUtil.resizeCanvas(
+              SwingFXUtils.toFXImage(overlayBI, null), width, height, overlayX, overlayY),
+          width,
+          height,
+          maskX,
+          maskY,
+          overlayX,
+          overlayY);
+    } catch (Exception e) {
+      log.error("Processing: " + file.getAbsolutePath(), e);
+      return null;
+    } finally {
+      // Dispose reader in finally block to avoid memory leaks
+      if (reader != null) reader.dispose();
+      if (is != null) is.close();
+    }
+  }
+
+  private static int getOffset(IIOMetadataNode layerInfo, String attribute) {
+    return Math.max(Integer.parseInt(layerInfo.getAttribute(attribute)), 0);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import javax.imageio.ImageIO;
+import net.rptools.tokentool.AppConstants;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * The keys and files shared by the overlay caches. The {@link OverlayManifest}, {@link
+ * OverlayThumbnailCache} and {@link LegacyOverlayCache} all key an overlay the same way so an entry
+ * in one can always be found in the others.
+ */
+class OverlayCacheFiles {
+  private static final String TEMP_EXTENSION = ".tmp";
+
+  // Temporary files from before this run were left behind by a crash or kill
+  private static final long STARTED = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+  /**
+   * Overlays are keyed by their path relative to the overlay directory with unix separators, so the
+   * caches survive the user home being moved. Anything outside the overlay directory falls back to
+   * its absolute path.
+   *
+   * @param overlayPath the overlay file or directory
+   * @return the key of the overlay
+   */
+  static String getKey(Path overlayPath) {
+    return getKey(AppConstants.OVERLAY_DIR.toPath(), overlayPath);
+  }
+
+  /**
+   * @param overlayDir the overlay directory the key is relative to
+   * @param overlayPath the overlay file or directory
+   * @return the key of the overlay
+   */
+  static String getKey(Path overlayDir, Path overlayPath) {
+    Path absoluteDir = overlayDir.toAbsolutePath();
+    Path absolutePath = overlayPath.toAbsolutePath();
+
+    if (absolutePath.startsWith(absoluteDir))
+      return FilenameUtils.separatorsToUnix(absoluteDir.relativize(absolutePath).toString());
+    else return FilenameUtils.separatorsToUnix(absolutePath.toString());
+  }
+
+  /**
+   * A file name safe hash of a key, overlay paths may be too long or use characters that aren't
+   * allowed in a file name.
+   *
+   * @param key an overlay key
+   * @return the SHA-1 of the key in hex
+   */
+  static String hash(String key) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      StringBuilder hash = new StringBuilder();
+
+      for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8)))
+        hash.append(String.format("%02x", b));
+
+      return hash.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every JRE is required to support SHA-1 so this should never happen...
+      return Integer.toHexString(key.hashCode());
+    }
+  }
+
+  /**
+   * Write an image as a PNG. It is written to a temporary file in the same directory first and
+   * moved into place, so a partly written file is never read by another thread or after a crash.
+   *
+   * @param image the image to write
+   * @param file the PNG file, its directory must exist
+   * @throws IOException if the image can not be written
+   */
+  static void writePng(Image image, File file) throws IOException {
+    File tempFile = File.createTempFile("cache", TEMP_EXTENSION, file.getParentFile());
+
+    try {
+      ImageIO.write(SwingFXUtils.fromFXImage(image, null), "png", tempFile);
+      Files.move(
+          tempFile.toPath(),
+          file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      FileUtils.deleteQuietly(tempFile);
+    }
+  }
+
+  /**
+   * Delete the temporary files a crash or kill left behind. Only files from before this run are
+   * deleted, a temporary file being written right now is left alone.
+   *
+   * @param dir the cache directory
+   * @return the number of files deleted
+   */
+  static int deleteStaleTempFiles(File dir) {
+    File[] tempFiles =
+        dir.listFiles(
+            file -> file.getName().endsWith(TEMP_EXTENSION) && file.lastModified() < STARTED);
+    if (tempFiles == null) return 0;
+
+    int deleted = 0;
+    for (File tempFile : tempFiles) if (FileUtils.deleteQuietly(tempFile)) deleted++;
+
+    return deleted;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Watches the overlay directory and all of its sub directories for changes. Events are collected
+ * until the directory has been quiet for a moment, so a file still being copied is only reported
+ * once, and then handed to the {@link Listener} on the watcher thread.
+ *
+ * <p>A rename is reported by the file system as a delete of the old path followed by a create of
+ * the new path.
+ */
+public class OverlayDirectoryWatcher {
+  private static final Logger log = LogManager.getLogger(OverlayDirectoryWatcher.class);
+
+  private static final long QUIET_PERIOD_MILLIS = 500;
+
+  private final Path overlayDir;
+  private final Listener listener;
+  private final Map<WatchKey, Path> watchedDirs = new LinkedHashMap<>();
+  private WatchService watchService;
+
+  /** Receives the changes found under the overlay directory, always on the watcher thread. */
+  public interface Listener {
+    /**
+     * An overlay file or directory was added, or an existing overlay file was replaced.
+     *
+     * @param path the new or changed file or directory
+     */
+    void overlayCreated(Path path);
+
+    /**
+     * An overlay file or directory was removed.
+     *
+     * @param path the file or directory that no longer exists
+     */
+    void overlayDeleted(Path path);
+
+    /** Too many changes happened at once to be tracked, the whole directory should be reloaded. */
+    void overflow();
+  }
+
+  public OverlayDirectoryWatcher(Path overlayDir, Listener listener) {
+    this.overlayDir = overlayDir;
+    this.listener = listener;
+  }
+
+  /**
+   * Register the overlay directory tree and start watching it on a daemon thread.
+   *
+   * @throws IOException if the file system does not support watching the overlay directory
+   */
+  public synchronized void start() throws IOException {
+    if (watchService != null) return;
+
+    watchService = FileSystems.getDefault().newWatchService();
+    registerAll(watchService, overlayDir);
+
+    Thread watcherThread = new Thread(this::processEvents, "OverlayDirectoryWatcher");
+    watcherThread.setDaemon(true);
+    watcherThread.start();
+  }
+
+  public synchronized boolean isRunning() {
+    return watchService != null;
+  }
+
+  public synchronized void stop() {
+    if (watchService == null) return;
+
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      log.error("Error closing overlay directory watcher", e);
+    }
+
+    watchService = null;
+  }
+
+  private void registerAll(WatchService service, Path dir) throws IOException {
+    Files.walkFileTree(
+        dir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs)
+              throws IOException {
+            watchedDirs.put(
+                subDir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), subDir);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private void processEvents() {
+    WatchService service = watchService;
+
+    try {
+      while (true) {
+        // Block for the first change then keep collecting until things settle down
+        Map<Path, WatchEvent.Kind<?>> changes = new LinkedHashMap<>();
+        boolean overflow = collectEvents(service, service.take(), changes);
+
+        WatchKey key;
+        while ((key = service.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null)
+          overflow |= collectEvents(service, key, changes);
+
+        if (overflow) {
+          log.info("Overlay directory watcher overflowed, reloading all overlays.");
+          listener.overflow();
+          continue;
+        }
+
+        for (Map.Entry<Path, WatchEvent.Kind<?>> change : changes.entrySet()) {
+          if (change.getValue() == ENTRY_DELETE) listener.overlayDeleted(change.getKey());
+          else listener.overlayCreated(change.getKey());
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      log.debug("Overlay directory watcher stopped.");
+    }
+  }
+
+  /*
+   * Returns true if events were lost. Only the latest kind of change per path is kept, a modify
+   * following a create is still reported as a create.
+   */
+  private boolean collectEvents(
+      WatchService service, WatchKey key, Map<Path, WatchEvent.Kind<?>> changes) {
+    Path dir = watchedDirs.get(key);
+    boolean overflow = false;
+
+    for (WatchEvent<?> event : key.pollEvents()) {
+      WatchEvent.Kind<?> kind = event.kind();
+
+      if (kind == OVERFLOW) {
+        overflow = true;
+        continue;
+      }
+
+      if (dir == null) continue;
+
+      Path path = dir.resolve((Path) event.context());
+
+      // Directories report a modify whenever their contents change, that is already covered. It is
+      // skipped before anything is removed so a pending create of a new directory is never lost.
+      if (kind == ENTRY_MODIFY && Files.isDirectory(path)) continue;
+
+      WatchEvent.Kind<?> previousKind = changes.remove(path);
+
+      if (kind == ENTRY_CREATE && Files.isDirectory(path)) {
+        try {
+          registerAll(service, path);
+        } catch (IOException e) {
+          log.error("Unable to watch new overlay directory " + path, e);
+        }
+      }
+
+      if (kind == ENTRY_MODIFY && previousKind == ENTRY_CREATE) kind = ENTRY_CREATE;
+
+      changes.put(path, kind);
+    }
+
+    if (!key.reset()) watchedDirs.remove(key);
+
+    return overflow;
+  }
+}
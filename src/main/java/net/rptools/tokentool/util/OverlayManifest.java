@@ -0,0 +1,273 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.rptools.tokentool.AppConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Every overlay and overlay directory under {@link AppConstants#OVERLAY_DIR}, found with a single
+ * walk of the directory tree. The size and last-modified time come from the same walk so nothing
+ * else needs to read them again.
+ *
+ * <p>The installer, the progress bar, the thumbnail cache and the overlay tree all use the current
+ * manifest. It is kept up to date with {@link #add(Path)} and {@link #remove(Path)} as overlays
+ * change while TokenTool runs. It is not persisted, overlays can be replaced while TokenTool isn't
+ * running without their directory changing so the overlay directory is scanned on every start.
+ */
+public class OverlayManifest {
+  private static final Logger log = LogManager.getLogger(OverlayManifest.class);
+
+  private static volatile OverlayManifest current;
+
+  public enum Type {
+    DIRECTORY,
+    PSD,
+    IMAGE
+  }
+
+  /** A single overlay file or directory, the path is relative to the overlay directory. */
+  public static class Entry {
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final Type type;
+
+    private Entry(String path, long size, long lastModified, Type type) {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.type = type;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    public boolean isDirectory() {
+      return type == Type.DIRECTORY;
+    }
+  }
+
+  private final Path overlayDir;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final Map<String, List<Entry>> children = new HashMap<>();
+  private int overlayCount = 0;
+
+  private OverlayManifest(Path overlayDir) {
+    this.overlayDir = overlayDir.toAbsolutePath();
+  }
+
+  /**
+   * Walk the overlay directory once and make the result the current manifest.
+   *
+   * @param dir the overlay directory
+   * @return the new current manifest
+   * @throws IOException if the overlay directory can not be read
+   */
+  public static OverlayManifest scan(File dir) throws IOException {
+    OverlayManifest manifest = new OverlayManifest(dir.toPath());
+
+    if (dir.isDirectory()) manifest.walk(manifest.overlayDir, new ArrayList<>());
+
+    log.info("Overlays found: " + manifest.getOverlayCount());
+
+    current = manifest;
+    return manifest;
+  }
+
+  /**
+   * @return the manifest from the last scan, scanning the overlay directory if there hasn't been
+   *     one yet
+   * @throws IOException if the overlay directory can not be read
+   */
+  public static OverlayManifest getCurrent() throws IOException {
+    OverlayManifest manifest = current;
+    if (manifest == null) manifest = scan(AppConstants.OVERLAY_DIR);
+
+    return manifest;
+  }
+
+  public synchronized int getOverlayCount() {
+    return overlayCount;
+  }
+
+  /** @return a copy of every overlay file entry, directories are not included */
+  public synchronized List<Entry> getOverlays() {
+    List<Entry> overlays = new ArrayList<>(overlayCount);
+    for (Entry entry : entries.values()) if (!entry.isDirectory()) overlays.add(entry);
+
+    return overlays;
+  }
+
+  /**
+   * @param dir an overlay directory
+   * @return the overlay files and sub directories directly in the directory, unsorted
+   */
+  public synchronized List<Path> getChildren(Path dir) {
+    List<Entry> dirEntries = children.get(getKey(dir));
+    if (dirEntries == null) return Collections.emptyList();
+
+    List<Path> childPaths = new ArrayList<>(dirEntries.size());
+    for (Entry entry : dirEntries) childPaths.add(toPath(entry));
+
+    return childPaths;
+  }
+
+  /**
+   * @param path an overlay file or directory
+   * @return true if the overlay or directory was found by the last scan or added since
+   */
+  public synchronized boolean contains(Path path) {
+    return entries.containsKey(getKey(path));
+  }
+
+  /**
+   * @param path an overlay file or directory
+   * @return true if the path is the overlay directory or one of its sub directories
+   */
+  public synchronized boolean isDirectory(Path path) {
+    String key = getKey(path);
+    if (key.isEmpty()) return true;
+
+    Entry entry = entries.get(key);
+    return entry != null && entry.isDirectory();
+  }
+
+  public Path toPath(Entry entry) {
+    return overlayDir.resolve(entry.getPath());
+  }
+
+  /**
+   * Add a new or replaced overlay file, or a new directory including everything under it.
+   *
+   * @param path the overlay file or directory
+   * @return the overlay file entries that were added or replaced
+   */
+  public synchronized List<Entry> add(Path path) {
+    List<Entry> added = new ArrayList<>();
+
+    try {
+      walk(path.toAbsolutePath(), added);
+    } catch (IOException e) {
+      log.error("Unable to add " + path + " to overlay manifest", e);
+    }
+
+    return added;
+  }
+
+  /**
+   * Remove an overlay file, or a directory and everything that was under it.
+   *
+   * @param path the overlay file or directory
+   */
+  public synchronized void remove(Path path) {
+    String key = getKey(path);
+    Entry entry = entries.remove(key);
+    if (entry == null) return;
+
+    List<Entry> siblings = children.get(getParentKey(key));
+    if (siblings != null) siblings.remove(entry);
+
+    if (entry.isDirectory()) {
+      List<Entry> dirEntries = children.remove(key);
+      if (dirEntries != null) for (Entry child : new ArrayList<>(dirEntries)) remove(toPath(child));
+    } else {
+      overlayCount--;
+    }
+  }
+
+  private void walk(Path start, List<Entry> overlays) throws IOException {
+    Files.walkFileTree(
+        start,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            // The overlay directory itself is the root, not an entry
+            if (!dir.equals(overlayDir)) put(dir, attrs, Type.DIRECTORY);
+
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            String fileName = file.getFileName().toString();
+
+            if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+
+            if (ImageUtil.PSD_FILE_FILTER.accept(null, fileName))
+              overlays.add(put(file, attrs, Type.PSD));
+            else if (ImageUtil.SUPPORTED_IMAGE_FILE_FILTER.accept(null, fileName))
+              overlays.add(put(file, attrs, Type.IMAGE));
+
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            log.error("Unable to read overlay " + file, e);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private Entry put(Path path, BasicFileAttributes attrs, Type type) {
+    String key = getKey(path);
+    Entry entry = new Entry(key, attrs.size(), attrs.lastModifiedTime().toMillis(), type);
+    Entry previous = entries.put(key, entry);
+
+    List<Entry> siblings = children.computeIfAbsent(getParentKey(key), k -> new ArrayList<>());
+    if (previous != null) siblings.remove(previous);
+    else if (type != Type.DIRECTORY) overlayCount++;
+
+    siblings.add(entry);
+
+    return entry;
+  }
+
+  private String getKey(Path path) {
+    return OverlayCacheFiles.getKey(overlayDir, path);
+  }
+
+  private static String getParentKey(String key) {
+    int index = key.lastIndexOf('/');
+    return index < 0 ? "" : key.substring(0, index);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decodes overlays the user is likely to select next into the {@link OverlayAssetCache} on a single
+ * low priority background thread. Each call to {@link #prefetch(List)} replaces the previous
+ * request, any overlay from it that hasn't started decoding yet is cancelled.
+ */
+public class OverlayPrefetcher {
+  private static final Logger log = LogManager.getLogger(OverlayPrefetcher.class);
+
+  private final ExecutorService executorService =
+      Executors.newSingleThreadExecutor(
+          runable -> {
+            Thread prefetchThread = Executors.defaultThreadFactory().newThread(runable);
+            prefetchThread.setName("OverlayPrefetcher");
+            prefetchThread.setPriority(Thread.MIN_PRIORITY);
+            prefetchThread.setDaemon(true);
+            return prefetchThread;
+          });
+
+  private final List<Future<?>> pending = new ArrayList<>();
+
+  /**
+   * Cancel any outstanding prefetches and start decoding the given overlays in order.
+   *
+   * @param overlayPaths the overlays to decode, most likely to be selected first
+   */
+  public synchronized void prefetch(List<Path> overlayPaths) {
+    cancel();
+
+    for (Path overlayPath : overlayPaths) {
+      pending.add(
+          executorService.submit(
+              () -> {
+                if (OverlayAssetCache.getCachedAsset(overlayPath) != null) return;
+
+                try {
+                  OverlayAssetCache.getAsset(overlayPath);
+                  log.debug("Prefetched " + overlayPath);
+                } catch (IOException e) {
+                  log.debug("Unable to prefetch " + overlayPath, e);
+                }
+              }));
+    }
+  }
+
+  /** Cancel every prefetch that hasn't started yet, a decode in progress is left to finish. */
+  public synchronized void cancel() {
+    for (Future<?> future : pending) future.cancel(false);
+
+    pending.clear();
+  }
+
+  public void shutdown() {
+    cancel();
+    executorService.shutdownNow();
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import javafx.scene.image.Image;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A single file holding many PNG thumbnails, read through one memory mapping so no file has to be
+ * opened per thumbnail.
+ *
+ * <p>The file starts with a header (magic, version, record count) followed by fixed width index
+ * records sorted by their 20 byte id, so a thumbnail is found with a binary search of the mapping.
+ * Each record holds the id, the offset and length of the PNG tile and its width and height. The
+ * tiles follow the index.
+ */
+public class OverlayThumbnailAtlas {
+  private static final Logger log = LogManager.getLogger(OverlayThumbnailAtlas.class);
+
+  private static final int MAGIC = 0x54544154; // TTAT
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 12;
+
+  static final int ID_SIZE = 20;
+  private static final int RECORD_SIZE = ID_SIZE + 8 + 4 + 4 + 4;
+
+  private final ByteBuffer buffer;
+  private final int count;
+
+  private OverlayThumbnailAtlas(ByteBuffer buffer, int count) {
+    this.buffer = buffer;
+    this.count = count;
+  }
+
+  /**
+   * Map an existing atlas file.
+   *
+   * @param atlasFile the atlas file
+   * @return the atlas, or null if the file does not exist or is not a valid atlas
+   */
+  public static OverlayThumbnailAtlas open(File atlasFile) {
+    return open(atlasFile, true);
+  }
+
+  /**
+   * Read an existing atlas file into memory without mapping it, so the file can be replaced while
+   * the atlas is still in use.
+   *
+   * @param atlasFile the atlas file
+   * @return the atlas, or null if the file does not exist or is not a valid atlas
+   */
+  public static OverlayThumbnailAtlas read(File atlasFile) {
+    return open(atlasFile, false);
+  }
+
+  /**
+   * Read only the header of an atlas file.
+   *
+   * @param atlasFile the atlas file
+   * @return the number of thumbnails in the atlas, 0 if the file does not exist or is not valid
+   */
+  public static int count(File atlasFile) {
+    if (!atlasFile.isFile()) return 0;
+
+    try (FileChannel channel = FileChannel.open(atlasFile.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) >= 0) ;
+
+      if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+        return 0;
+
+      return Math.max(header.getInt(8), 0);
+    } catch (IOException e) {
+      log.error("Unable to read thumbnail atlas " + atlasFile, e);
+      return 0;
+    }
+  }
+
+  private static OverlayThumbnailAtlas open(File atlasFile, boolean map) {
+    if (!atlasFile.isFile()) return null;
+
+    // A mapping stays valid after the channel is closed
+    try (FileChannel channel = FileChannel.open(atlasFile.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buffer;
+
+      if (map) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } else {
+        buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) ;
+        buffer.flip();
+      }
+
+      if (buffer.limit() < HEADER_SIZE
+          || buffer.getInt(0) != MAGIC
+          || buffer.getInt(4) != VERSION) {
+        log.warn("Ignoring invalid thumbnail atlas " + atlasFile);
+        return null;
+      }
+
+      int count = buffer.getInt(8);
+      if (count < 0 || HEADER_SIZE + (long) count * RECORD_SIZE > buffer.limit()) {
+        log.warn("Ignoring truncated thumbnail atlas " + atlasFile);
+        return null;
+      }
+
+      return new OverlayThumbnailAtlas(buffer, count);
+    } catch (IOException e) {
+      log.error("Unable to open thumbnail atlas " + atlasFile, e);
+      return null;
+    }
+  }
+
+  /**
+   * Write a new atlas file, replacing any existing file.
+   *
+   * @param atlasFile the atlas file to write
+   * @param tiles the PNG encoded thumbnails keyed by their 20 byte id in hex
+   * @throws IOException if the atlas could not be written
+   */
+  public static void write(File atlasFile, Map<String, byte[]> tiles) throws IOException {
+    Map<String, byte[]> sortedTiles = new TreeMap<>(tiles);
+
+    try (FileChannel channel =
+        FileChannel.open(
+            atlasFile.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + sortedTiles.size() * RECORD_SIZE);
+      index.putInt(MAGIC).putInt(VERSION).putInt(sortedTiles.size());
+
+      long offset = index.capacity();
+      channel.position(offset);
+
+      for (Map.Entry<String, byte[]> tile : sortedTiles.entrySet()) {
+        byte[] png = tile.getValue();
+
+        index.put(toId(tile.getKey()));
+        index.putLong(offset);
+        index.putInt(png.length);
+        index.putInt(getPngDimension(png, 16));
+        index.putInt(getPngDimension(png, 20));
+
+        channel.write(ByteBuffer.wrap(png));
+        offset += png.length;
+      }
+
+      index.flip();
+      channel.write(index, 0);
+    }
+  }
+
+  /**
+   * @param id the thumbnail id in hex
+   * @return the decoded thumbnail, or null if the atlas does not hold it
+   */
+  public Image getImage(String id) {
+    byte[] png = getBytes(id);
+    if (png == null) return null;
+
+    Image thumb = new Image(new ByteArrayInputStream(png));
+    return thumb.isError() ? null : thumb;
+  }
+
+  /**
+   * @param id the thumbnail id in hex
+   * @return the PNG encoded thumbnail, or null if the atlas does not hold it
+   */
+  public byte[] getBytes(String id) {
+    int record = find(toId(id));
+    if (record < 0) return null;
+
+    int position = HEADER_SIZE + record * RECORD_SIZE + ID_SIZE;
+    long offset = buffer.getLong(position);
+    int length = buffer.getInt(position + 8);
+
+    if (offset < 0 || length < 0 || offset + length > buffer.limit()) return null;
+
+    // Duplicate so concurrent readers don't share a position
+    ByteBuffer tile = buffer.duplicate();
+    tile.position((int) offset);
+
+    byte[] png = new byte[length];
+    tile.get(png);
+
+    return png;
+  }
+
+  /*
+   * Binary search of the fixed width index, returns the record number or -1
+   */
+  private int find(byte[] id) {
+    int low = 0, high = count - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int compare = compareId(HEADER_SIZE + middle * RECORD_SIZE, id);
+
+      if (compare < 0) low = middle + 1;
+      else if (compare > 0) high = middle - 1;
+      else return middle;
+    }
+
+    return -1;
+  }
+
+  private int compareId(int position, byte[] id) {
+    for (int i = 0; i < ID_SIZE; i++) {
+      int compare = Integer.compare(buffer.get(position + i) & 0xff, id[i] & 0xff);
+      if (compare != 0) return compare;
+    }
+
+    return 0;
+  }
+
+  /*
+   * Ids are stored as raw bytes, hex ids sort the same way as long as they are lower case
+   */
+  private static byte[] toId(String hexId) {
+    byte[] id = new byte[ID_SIZE];
+
+    for (int i = 0; i < ID_SIZE && i * 2 + 1 < hexId.length(); i++)
+      id[i] = (byte) Integer.parseInt(hexId.substring(i * 2, i * 2 + 2), 16);
+
+    return id;
+  }
+
+  /*
+   * PNG width & height are the first two big endian ints of the IHDR chunk
+   */
+  private static int getPngDimension(byte[] png, int position) {
+    if (png.length < position + 4) return 0;
+
+    return ByteBuffer.wrap(png, position, 4).getInt();
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javafx.scene.image.Image;
+import net.rptools.tokentool.AppConstants;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent store of pre-scaled overlay thumbnails kept under {@link AppConstants#CACHE_DIR}.
+ *
+ * <p>Thumbnails are written as small PNG files alongside a JSON index keyed by the overlay path
+ * relative to {@link AppConstants#OVERLAY_DIR}. An index entry is only reused when the overlay's
+ * file size and last-modified time still match, so a warm start only decodes new or changed
+ * overlays.
+ *
+ * <p>New thumbnails are first written as loose PNG files. {@link #compact()} moves them all into a
+ * single {@link OverlayThumbnailAtlas} so a later start reads every thumbnail from one memory
+ * mapped file instead of opening a file per overlay.
+ *
+ * <p>Thumbnails handed out are also held in memory through soft references so tree cells scrolling
+ * back into view don't touch the disk, while still letting the garbage collector release them under
+ * memory pressure.
+ */
+public class OverlayThumbnailCache {
+  private static final Logger log = LogManager.getLogger(OverlayThumbnailCache.class);
+
+  private static final File THUMBNAIL_DIR = new File(AppConstants.CACHE_DIR, "thumbnails");
+  private static final File INDEX_FILE = new File(THUMBNAIL_DIR, "index.json");
+  private static final File ATLAS_FILE = new File(THUMBNAIL_DIR, "atlas.bin");
+  private static final String THUMBNAIL_EXTENSION = ".png";
+
+  private static final Map<String, ThumbnailEntry> index = loadIndex();
+  private static final Map<String, SoftReference<Image>> thumbnails = new ConcurrentHashMap<>();
+  private static volatile boolean indexChanged = false;
+
+  private static OverlayThumbnailAtlas atlas;
+  private static boolean atlasOpened = false;
+
+  /*
+   * A single row of the thumbnail index, serialized as JSON. Packed thumbnails are stored in the
+   * atlas instead of their own file.
+   */
+  private static class ThumbnailEntry {
+    long size;
+    long lastModified;
+    String fileName;
+    boolean packed;
+
+    ThumbnailEntry(long size, long lastModified, String fileName) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.fileName = fileName;
+    }
+
+    boolean matches(long size, long lastModified) {
+      return this.size == size && this.lastModified == lastModified;
+    }
+  }
+
+  /**
+   * Return the thumbnail for an overlay, decoding the overlay only if no up to date thumbnail is
+   * stored in the cache.
+   *
+   * @param overlayPath the overlay file
+   * @return the thumbnail image, or null if the overlay could not be decoded
+   * @throws IOException if the overlay attributes can not be read
+   */
+  public static Image getThumbnail(Path overlayPath) throws IOException {
+    String key = OverlayCacheFiles.getKey(overlayPath);
+    ThumbnailEntry entry = getCurrentEntry(overlayPath, key);
+
+    if (entry != null) {
+      Image thumb = getCachedThumbnail(overlayPath);
+      if (thumb != null) return thumb;
+
+      thumb = readThumbnail(entry);
+      if (thumb != null) {
+        thumbnails.put(key, new SoftReference<>(thumb));
+        return thumb;
+      }
+
+      log.debug("Cached thumbnail unreadable for " + key);
+    }
+
+    Image thumb = createThumbnail(overlayPath, key);
+    if (thumb != null) thumbnails.put(key, new SoftReference<>(thumb));
+
+    return thumb;
+  }
+
+  /**
+   * Make sure the cached thumbnail for an overlay is up to date without loading it into memory. Up
+   * to date thumbnails only cost a file attribute read.
+   *
+   * @param overlayPath the overlay file
+   * @throws IOException if the overlay attributes can not be read
+   */
+  public static void update(Path overlayPath) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(overlayPath, BasicFileAttributes.class);
+    update(overlayPath, attributes.size(), attributes.lastModifiedTime().toMillis());
+  }
+
+  /**
+   * Make sure the cached thumbnail for an overlay is up to date using already known attributes, eg
+   * from the {@link OverlayManifest}, so the file isn't touched at all if the thumbnail is current.
+   *
+   * @param overlayPath the overlay file
+   * @param size the overlay file size
+   * @param lastModified the overlay last-modified time in milliseconds
+   * @throws IOException if the overlay attributes can not be read
+   */
+  public static void update(Path overlayPath, long size, long lastModified) throws IOException {
+    String key = OverlayCacheFiles.getKey(overlayPath);
+
+    if (getCurrentEntry(key, size, lastModified) == null) {
+      // Drop the in memory copy of a replaced overlay so the new thumbnail is picked up
+      thumbnails.remove(key);
+      createThumbnail(overlayPath, key);
+    }
+  }
+
+  /**
+   * Return the thumbnail for an overlay only if it is still held in memory. This never touches the
+   * disk so it is safe to call from the JavaFX Application Thread.
+   *
+   * @param overlayPath the overlay file
+   * @return the thumbnail image, or null if it has not been loaded or was released
+   */
+  public static Image getCachedThumbnail(Path overlayPath) {
+    SoftReference<Image> thumbReference = thumbnails.get(OverlayCacheFiles.getKey(overlayPath));
+
+    return thumbReference == null ? null : thumbReference.get();
+  }
+
+  /**
+   * Remove the cached thumbnail for an overlay, eg when it has been deleted or replaced. Removing a
+   * directory removes the thumbnails of every overlay that was under it.
+   *
+   * @param overlayPath the overlay file or directory
+   */
+  public static void remove(Path overlayPath) {
+    String key = OverlayCacheFiles.getKey(overlayPath);
+    String dirPrefix = key + "/";
+
+    for (String indexKey : index.keySet())
+      if (indexKey.equals(key) || indexKey.startsWith(dirPrefix)) removeEntry(indexKey);
+  }
+
+  /**
+   * Drop every cached thumbnail whose source overlay no longer exists along with any thumbnail file
+   * that is no longer referenced by the index.
+   *
+   * @param manifest the overlays known to exist
+   */
+  public static void evictStale(OverlayManifest manifest) {
+    int deleted = OverlayCacheFiles.deleteStaleTempFiles(THUMBNAIL_DIR);
+    if (deleted > 0) log.info("Deleted " + deleted + " unfinished thumbnail files.");
+
+    Path overlayDir = AppConstants.OVERLAY_DIR.toPath();
+    int evicted = 0;
+
+    Iterator<Map.Entry<String, ThumbnailEntry>> iterator = index.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, ThumbnailEntry> entry = iterator.next();
+      Path overlayPath = overlayDir.resolve(entry.getKey());
+
+      // Only overlays outside of the overlay directory need to be looked for on disk
+      if (!manifest.contains(overlayPath) && !Files.isRegularFile(overlayPath)) {
+        thumbnails.remove(entry.getKey());
+        if (!entry.getValue().packed)
+          FileUtils.deleteQuietly(new File(THUMBNAIL_DIR, entry.getValue().fileName));
+        iterator.remove();
+        evicted++;
+      }
+    }
+
+    // Clean up any orphaned thumbnails, eg from an index that failed to save
+    File[] thumbFiles = THUMBNAIL_DIR.listFiles((dir, name) -> name.endsWith(THUMBNAIL_EXTENSION));
+    if (thumbFiles != null && thumbFiles.length > 0) {
+      Set<String> referenced = new HashSet<>();
+      for (ThumbnailEntry entry : index.values()) if (!entry.packed) referenced.add(entry.fileName);
+
+      for (File thumbFile : thumbFiles) {
+        if (!referenced.contains(thumbFile.getName())) {
+          log.debug("Deleting orphaned thumbnail " + thumbFile.getName());
+          FileUtils.deleteQuietly(thumbFile);
+        }
+      }
+    }
+
+    if (evicted > 0) {
+      log.info("Evicted " + evicted + " stale overlay thumbnails from cache.");
+      indexChanged = true;
+    }
+  }
+
+  /**
+   * Move every loose thumbnail into a new atlas, dropping thumbnails of overlays that have since
+   * been removed. Nothing is done if the atlas is already up to date.
+   *
+   * <p>The atlas is only rewritten before it has been mapped, a mapped file can not be replaced on
+   * every platform. Call this once the overlays are cached but before any thumbnail is displayed.
+   */
+  public static synchronized void compact() {
+    if (atlasOpened) {
+      log.debug("Thumbnail atlas already in use, skipping compaction.");
+      return;
+    }
+
+    int looseCount = 0;
+    int packedCount = 0;
+
+    for (ThumbnailEntry entry : index.values()) {
+      if (entry.packed) packedCount++;
+      else looseCount++;
+    }
+
+    // Only the atlas header is needed to tell if anything changed
+    if (looseCount == 0 && packedCount == OverlayThumbnailAtlas.count(ATLAS_FILE)) return;
+
+    OverlayThumbnailAtlas currentAtlas = null;
+    if (packedCount > 0) currentAtlas = OverlayThumbnailAtlas.read(ATLAS_FILE);
+
+    Map<String, byte[]> tiles = new HashMap<>();
+    Iterator<ThumbnailEntry> iterator = index.values().iterator();
+    while (iterator.hasNext()) {
+      ThumbnailEntry entry = iterator.next();
+      byte[] png = null;
+
+      try {
+        if (entry.packed && currentAtlas != null) png = currentAtlas.getBytes(getId(entry));
+        else if (!entry.packed)
+          png = FileUtils.readFileToByteArray(new File(THUMBNAIL_DIR, entry.fileName));
+      } catch (IOException e) {
+        log.debug("Unable to read thumbnail " + entry.fileName, e);
+      }
+
+      // Lost thumbnails are simply recreated the next time they are needed
+      if (png == null) {
+        iterator.remove();
+        indexChanged = true;
+      } else {
+        tiles.put(getId(entry), png);
+      }
+    }
+
+    File newAtlasFile = new File(THUMBNAIL_DIR, ATLAS_FILE.getName() + ".tmp");
+    try {
+      OverlayThumbnailAtlas.write(newAtlasFile, tiles);
+      Files.move(newAtlasFile.toPath(), ATLAS_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      log.error("Unable to write thumbnail atlas " + ATLAS_FILE, e);
+      FileUtils.deleteQuietly(newAtlasFile);
+      return;
+    }
+
+    for (ThumbnailEntry entry : index.values()) {
+      if (!entry.packed) {
+        FileUtils.deleteQuietly(new File(THUMBNAIL_DIR, entry.fileName));
+        entry.packed = true;
+      }
+    }
+
+    indexChanged = true;
+    log.info("Compacted " + tiles.size() + " overlay thumbnails into " + ATLAS_FILE);
+  }
+
+  /** Write the thumbnail index to disk if it has changed since it was last loaded or saved. */
+  public static synchronized void saveIndex() {
+    if (!indexChanged) return;
+
+    try {
+      THUMBNAIL_DIR.mkdirs();
+      FileUtils.writeStringToFile(INDEX_FILE, new Gson().toJson(index), StandardCharsets.UTF_8);
+      indexChanged = false;
+      log.debug("Saved thumbnail index with " + index.size() + " entries.");
+    } catch (IOException e) {
+      log.error("Unable to save thumbnail index " + INDEX_FILE, e);
+    }
+  }
+
+  private static void removeEntry(String key) {
+    thumbnails.remove(key);
+
+    ThumbnailEntry entry = index.remove(key);
+
+    if (entry != null) {
+      if (!entry.packed) FileUtils.deleteQuietly(new File(THUMBNAIL_DIR, entry.fileName));
+      indexChanged = true;
+    }
+  }
+
+  /*
+   * Returns the index entry for the overlay if it matches the overlay's current size and
+   * last-modified time and the thumbnail file is still there, otherwise null
+   */
+  private static ThumbnailEntry getCurrentEntry(Path overlayPath, String key) throws IOException {
+    if (!index.containsKey(key)) return null;
+
+    BasicFileAttributes attributes = Files.readAttributes(overlayPath, BasicFileAttributes.class);
+    return getCurrentEntry(key, attributes.size(), attributes.lastModifiedTime().toMillis());
+  }
+
+  private static ThumbnailEntry getCurrentEntry(String key, long size, long lastModified) {
+    ThumbnailEntry entry = index.get(key);
+    if (entry == null || !entry.matches(size, lastModified)) return null;
+
+    // Packed thumbnails are verified when read, checking them here would map the atlas too early
+    if (!entry.packed && !new File(THUMBNAIL_DIR, entry.fileName).exists()) return null;
+
+    return entry;
+  }
+
+  private static Image readThumbnail(ThumbnailEntry entry) {
+    if (entry.packed) {
+      OverlayThumbnailAtlas currentAtlas = getAtlas();
+      return currentAtlas == null ? null : currentAtlas.getImage(getId(entry));
+    }
+
+    Image thumb = new Image(new File(THUMBNAIL_DIR, entry.fileName).toURI().toString());
+    return thumb.isError() ? null : thumb;
+  }
+
+  private static synchronized OverlayThumbnailAtlas getAtlas() {
+    if (!atlasOpened) {
+      atlasOpened = true;
+      atlas = OverlayThumbnailAtlas.open(ATLAS_FILE);
+    }
+
+    return atlas;
+  }
+
+  private static String getId(ThumbnailEntry entry) {
+    return FilenameUtils.getBaseName(entry.fileName);
+  }
+
+  private static Image createThumbnail(Path overlayPath, String key) throws IOException {
+    // Read the attributes before decoding so a change made while decoding is picked up next time
+    BasicFileAttributes attributes = Files.readAttributes(overlayPath, BasicFileAttributes.class);
+
+    Image thumb = ImageUtil.createOverlayThumb(overlayPath);
+    if (thumb == null) return null;
+
+    String fileName = getFileName(key);
+    try {
+      THUMBNAIL_DIR.mkdirs();
+      OverlayCacheFiles.writePng(thumb, new File(THUMBNAIL_DIR, fileName));
+      index.put(
+          key,
+          new ThumbnailEntry(
+              attributes.size(), attributes.lastModifiedTime().toMillis(), fileName));
+      indexChanged = true;
+    } catch (IOException e) {
+      log.error("Unable to cache thumbnail for " + overlayPath, e);
+    }
+
+    return thumb;
+  }
+
+  private static Map<String, ThumbnailEntry> loadIndex() {
+    Map<String, ThumbnailEntry> loadedIndex = new ConcurrentHashMap<>();
+
+    if (!INDEX_FILE.exists()) return loadedIndex;
+
+    try {
+      Map<String, ThumbnailEntry> savedIndex =
+          new Gson()
+              .fromJson(
+                  FileUtils.readFileToString(INDEX_FILE, StandardCharsets.UTF_8),
+                  new TypeToken<Map<String, ThumbnailEntry>>() {}.getType());
+
+      if (savedIndex != null) loadedIndex.putAll(savedIndex);
+    } catch (IOException | JsonSyntaxException e) {
+      log.warn("Unable to read thumbnail index, thumbnails will be rebuilt.", e);
+    }
+
+    return loadedIndex;
+  }
+
+  private static String getFileName(String key) {
+    return OverlayCacheFiles.hash(key) + THUMBNAIL_EXTENSION;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Brings the {@link OverlayThumbnailCache} up to date for every overlay in an {@link
+ * OverlayManifest}, in parallel on a fork-join pool bounded to the number of available processors.
+ * The overlay list is split in halves until every overlay is its own task.
+ *
+ * <p>Thumbnails are only written to the cache, none are kept in memory. The overlay TreeView loads
+ * them from the cache as its cells become visible.
+ */
+public class OverlayThumbnailLoader {
+  private static final Logger log = LogManager.getLogger(OverlayThumbnailLoader.class);
+
+  private final int overlayCount;
+  private final DoubleConsumer progressListener;
+  private final AtomicInteger loadCount = new AtomicInteger(0);
+  private double lastProgress = 0;
+
+  /**
+   * @param overlayCount the total number of overlay files, used to calculate progress
+   * @param progressListener called with the progress ranging from 0 to 1.0, never decreasing
+   */
+  public OverlayThumbnailLoader(int overlayCount, DoubleConsumer progressListener) {
+    this.overlayCount = Math.max(overlayCount, 1);
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * Cache the thumbnails for every overlay in the manifest, blocking until every overlay has been
+   * processed.
+   *
+   * @param manifest the scanned overlay directory
+   */
+  public void load(OverlayManifest manifest) {
+    ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    try {
+      pool.invoke(new OverlayTask(manifest, manifest.getOverlays()));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /*
+   * Progress is reported under a lock so the listener only ever sees increasing values, no matter
+   * which worker finishes first
+   */
+  private synchronized void overlayLoaded() {
+    double progress = (double) loadCount.incrementAndGet() / overlayCount;
+
+    if (progress > lastProgress) {
+      lastProgress = progress;
+      progressListener.accept(progress);
+    }
+  }
+
+  private class OverlayTask extends RecursiveAction {
+    private static final long serialVersionUID = 4563016392815233417L;
+
+    private final OverlayManifest manifest;
+    private final List<OverlayManifest.Entry> overlays;
+
+    OverlayTask(OverlayManifest manifest, List<OverlayManifest.Entry> overlays) {
+      this.manifest = manifest;
+      this.overlays = overlays;
+    }
+
+    @Override
+    protected void compute() {
+      if (overlays.size() > 1) {
+        int middle = overlays.size() / 2;
+        invokeAll(
+            new OverlayTask(manifest, overlays.subList(0, middle)),
+            new OverlayTask(manifest, overlays.subList(middle, overlays.size())));
+        return;
+      }
+
+      for (OverlayManifest.Entry overlay : overlays) {
+        Path filePath = manifest.toPath(overlay);
+
+        try {
+          // The manifest already read the attributes, the cache doesn't need to read them again
+          OverlayThumbnailCache.update(filePath, overlay.getSize(), overlay.getLastModified());
+        } catch (IOException e) {
+          log.error("Error caching overlay " + filePath, e);
+        }
+
+        overlayLoaded();
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Reusable raster buffers for the preview composite, which runs on every drag and scroll event.
+ * Buffers are pooled by size, a few per size, and only the most recently used sizes are kept so
+ * resizing the overlay doesn't leave buffers for every size it passed through.
+ *
+ * <p>Borrowed buffers hold whatever the last user left in them. Only return a buffer once nothing
+ * refers to it anymore, including ImageViews that are still on screen.
+ */
+public class RasterBufferPool {
+  // Buffers kept per size and the number of sizes kept
+  private static final int MAX_BUFFERS_PER_SIZE = 4;
+  private static final int MAX_SIZES = 4;
+
+  private static final Map<Long, ArrayDeque<int[]>> pixelBuffers = createPool();
+  private static final Map<Long, ArrayDeque<WritableImage>> images = createPool();
+
+  /**
+   * Borrow a pixel buffer.
+   *
+   * @param length the number of pixels needed
+   * @return a buffer of exactly length pixels, with undefined contents
+   */
+  public static int[] borrowPixels(int length) {
+    synchronized (pixelBuffers) {
+      ArrayDeque<int[]> buffers = pixelBuffers.get((long) length);
+      if (buffers != null && !buffers.isEmpty()) return buffers.pop();
+    }
+
+    return new int[length];
+  }
+
+  /** @param pixels a buffer from {@link #borrowPixels(int)} that is no longer used */
+  public static void returnPixels(int[] pixels) {
+    synchronized (pixelBuffers) {
+      release(pixelBuffers, (long) pixels.length, pixels);
+    }
+  }
+
+  /**
+   * Borrow an image.
+   *
+   * @param width the width in pixels
+   * @param height the height in pixels
+   * @return an image of exactly width x height pixels, with undefined contents
+   */
+  public static WritableImage borrowImage(int width, int height) {
+    synchronized (images) {
+      ArrayDeque<WritableImage> pooled = images.get(getKey(width, height));
+      if (pooled != null && !pooled.isEmpty()) return pooled.pop();
+    }
+
+    return new WritableImage(width, height);
+  }
+
+  /** @param image an image from {@link #borrowImage(int, int)} that is no longer used */
+  public static void returnImage(WritableImage image) {
+    if (image == null) return;
+
+    synchronized (images) {
+      release(images, getKey((int) image.getWidth(), (int) image.getHeight()), image);
+    }
+  }
+
+  private static <T> void release(Map<Long, ArrayDeque<T>> pool, long key, T buffer) {
+    ArrayDeque<T> buffers = pool.computeIfAbsent(key, k -> new ArrayDeque<>());
+
+    // The same buffer returned twice would be handed out to two users
+    Iterator<T> iterator = buffers.iterator();
+    while (iterator.hasNext()) if (iterator.next() == buffer) return;
+
+    if (buffers.size() < MAX_BUFFERS_PER_SIZE) buffers.push(buffer);
+  }
+
+  private static long getKey(int width, int height) {
+    return ((long) width << 32) | (height & 0xffffffffL);
+  }
+
+  /*
+   * Access ordered so the least recently used size is dropped first
+   */
+  private static <T> Map<Long, ArrayDeque<T>> createPool() {
+    return new LinkedHashMap<Long, ArrayDeque<T>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 2894460913577314036L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, ArrayDeque<T>> eldest) {
+        return size() > MAX_SIZES;
+      }
+    };
+  }
+}
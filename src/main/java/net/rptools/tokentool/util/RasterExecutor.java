@@ -0,0 +1,110 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritablePixelFormat;
+
+/**
+ * Runs raster kernels over bands of rows on the common fork-join pool. Images below {@link
+ * #PARALLEL_THRESHOLD} pixels are processed on the calling thread as splitting them costs more than
+ * it saves.
+ *
+ * <p>Kernels must only write to the rows they are given, reading anything is fine.
+ */
+public class RasterExecutor {
+  /** Images with fewer pixels than this, 512 x 512, are never split. */
+  public static final int PARALLEL_THRESHOLD = 512 * 512;
+
+  // Bands are split no smaller than this many pixels
+  private static final int MIN_BAND_PIXELS = 64 * 1024;
+
+  /** A kernel applied to the rows from fromRow (inclusive) to toRow (exclusive). */
+  public interface RowKernel {
+    void apply(int fromRow, int toRow);
+  }
+
+  /**
+   * Apply a kernel to every row of a raster, splitting the rows into bands processed in parallel
+   * when the raster is large enough. Returns once every row has been processed.
+   *
+   * @param width the raster width in pixels
+   * @param height the raster height in pixels
+   * @param kernel the kernel to apply
+   */
+  public static void forEachRowBand(int width, int height, RowKernel kernel) {
+    if (height <= 1 || (long) width * height < PARALLEL_THRESHOLD) {
+      kernel.apply(0, height);
+      return;
+    }
+
+    int minBandRows = Math.max(1, MIN_BAND_PIXELS / Math.max(width, 1));
+    ForkJoinPool.commonPool().invoke(new RowBandTask(kernel, 0, height, minBandRows));
+  }
+
+  /**
+   * Read an image into non-premultiplied ARGB pixels, converting bands of rows in parallel for
+   * large images.
+   *
+   * @param image the image to read
+   * @param pixels the destination, at least width * height long
+   * @param width the number of columns to read and the scanline stride of pixels
+   * @param height the number of rows to read
+   */
+  public static void readPixels(Image image, int[] pixels, int width, int height) {
+    WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
+
+    forEachRowBand(
+        width,
+        height,
+        (fromRow, toRow) ->
+            image
+                .getPixelReader()
+                .getPixels(
+                    0, fromRow, width, toRow - fromRow, format, pixels, fromRow * width, width));
+  }
+
+  private static class RowBandTask extends RecursiveAction {
+    private static final long serialVersionUID = -5021342402937405713L;
+
+    private final RowKernel kernel;
+    private final int fromRow, toRow, minBandRows;
+
+    RowBandTask(RowKernel kernel, int fromRow, int toRow, int minBandRows) {
+      this.kernel = kernel;
+      this.fromRow = fromRow;
+      this.toRow = toRow;
+      this.minBandRows = minBandRows;
+    }
+
+    @Override
+    protected void compute() {
+      int rows = toRow - fromRow;
+
+      if (rows <= minBandRows * 2) {
+        kernel.apply(fromRow, toRow);
+        return;
+      }
+
+      int middle = fromRow + rows / 2;
+      invokeAll(
+          new RowBandTask(kernel, fromRow, middle, minBandRows),
+          new RowBandTask(kernel, middle, toRow, minBandRows));
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * Coalesces render requests so a render runs at most once per JavaFX pulse. Requests only mark the
+ * render dirty, the next pulse runs it once with whatever the state is by then. The timer stops
+ * itself once a pulse goes by without a request so an idle preview costs nothing.
+ *
+ * <p>Call {@link #flush()} before reading the rendered result outside of a pulse, eg when saving.
+ */
+public class RenderScheduler {
+  private final Runnable render;
+  private final AnimationTimer timer;
+
+  private boolean dirty = false;
+  private boolean running = false;
+
+  /** @param render run on the JavaFX Application Thread to render the latest state */
+  public RenderScheduler(Runnable render) {
+    this.render = render;
+    this.timer =
+        new AnimationTimer() {
+          @Override
+          public void handle(long now) {
+            if (dirty) {
+              dirty = false;
+              RenderScheduler.this.render.run();
+            } else {
+              stop();
+              running = false;
+            }
+          }
+        };
+  }
+
+  /** Render on the next pulse, any number of requests before then result in a single render. */
+  public void requestRender() {
+    if (!Platform.isFxApplicationThread()) {
+      Platform.runLater(this::requestRender);
+      return;
+    }
+
+    dirty = true;
+
+    if (!running) {
+      running = true;
+      timer.start();
+    }
+  }
+
+  /** Render now if a render is pending. Must be called on the JavaFX Application Thread. */
+  public void flush() {
+    if (dirty) {
+      dirty = false;
+      render.run();
+    }
+  }
+}
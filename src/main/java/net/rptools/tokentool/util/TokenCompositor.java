@@ -0,0 +1,605 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.paint.Color;
+
+/**
+ * Composes a token from decoded layer images in premultiplied ARGB int[] space, without the scene
+ * graph, so it is safe to call from any thread.
+ *
+ * <p>Each {@link Layer} maps its image pixels onto the token with an affine transform. Layers are
+ * sampled bilinearly, layers drawn at less than half size are first shrunk with the {@link
+ * ImageResampler} to the nearest power of two so they are averaged rather than aliased. Decoded and
+ * shrunk source rasters are kept in a small LRU cache, the same portrait and overlay are composed
+ * over and over while dragging.
+ *
+ * <p>The rendered layers, the mask and the clipped background are kept too, the last two of each so
+ * the draft and full size previews don't evict each other, and only rendered again when the layers
+ * they depend on or the token size change. Layers are immutable and compared by value so moving the
+ * portrait only renders the portrait again, the mask, overlay and background are reused as they
+ * are.
+ */
+public class TokenCompositor {
+  // Total pixels of cached source rasters, 32M pixels is 128MB
+  private static final long MAX_CACHED_PIXELS = 32L * 1024 * 1024;
+
+  private static final LinkedHashMap<RasterKey, Raster> rasterCache =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private static long cachedPixels = 0;
+
+  // Clip bounds are tiny, only the number of mask/overlay/size combinations kept is limited
+  private static final int MAX_CACHED_CLIP_BOUNDS = 16;
+  private static final Map<List<Object>, int[]> clipBoundsCache =
+      new LinkedHashMap<List<Object>, int[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = -3620154227358436150L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, int[]> eldest) {
+          return size() > MAX_CACHED_CLIP_BOUNDS;
+        }
+      };
+
+  // Intermediates kept between renders, the last few of each name
+  private static final int LAYER_SLOTS = 2;
+  private static final String BACKGROUND = "background";
+  private static final String PORTRAIT = "portrait";
+  private static final String OVERLAY = "overlay";
+  private static final String MASK = "mask";
+  private static final String CLIPPED_BACKGROUND = "clippedBackground";
+  private static final Map<String, Map<List<Object>, int[]>> layerCache = new HashMap<>();
+
+  /** An image drawn onto the token. Immutable, layers are equal if they draw the same pixels. */
+  public static class Layer {
+    private final Image image;
+    private final AffineTransform transform;
+    private final double opacity;
+    private final Rectangle2D clip;
+
+    /**
+     * @param image the decoded layer image
+     * @param transform maps image pixel coordinates to token pixel coordinates, it is copied
+     * @param opacity from 0 to 1.0
+     */
+    public Layer(Image image, AffineTransform transform, double opacity) {
+      this(image, transform, opacity, null);
+    }
+
+    /**
+     * @param image the decoded layer image
+     * @param transform maps image pixel coordinates to token pixel coordinates, it is copied
+     * @param opacity from 0 to 1.0
+     * @param clip only token pixels with their center inside are drawn, null to draw them all
+     */
+    public Layer(Image image, AffineTransform transform, double opacity, Rectangle2D clip) {
+      this.image = image;
+      this.transform = new AffineTransform(transform);
+      this.opacity = Math.max(0, Math.min(1, opacity));
+      this.clip = clip;
+    }
+
+    public Image getImage() {
+      return image;
+    }
+
+    public AffineTransform getTransform() {
+      return new AffineTransform(transform);
+    }
+
+    public double getOpacity() {
+      return opacity;
+    }
+
+    /** @return the clip in token pixel coordinates, or null if the layer isn't clipped */
+    public Rectangle2D getClip() {
+      return clip;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Layer)) return false;
+
+      // Images are compared by identity, a new image is always a new layer
+      Layer other = (Layer) obj;
+      return image == other.image
+          && transform.equals(other.transform)
+          && Double.compare(opacity, other.opacity) == 0
+          && Objects.equals(clip, other.clip);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(image), transform, opacity, clip);
+    }
+  }
+
+  /**
+   * Compose a token. With clipImage the background and portrait are clipped to the mask and the
+   * token is the size of the mask, otherwise every layer is drawn as is. useAsBase draws the
+   * overlay under the portrait instead of over it.
+   *
+   * @param width the token width in pixels
+   * @param height the token height in pixels
+   * @param backgroundColor filled in under the background layer
+   * @param background the background layer, may be null
+   * @param portrait the portrait layer, may be null
+   * @param mask the mask layer, may be null if clipImage is false
+   * @param overlay the overlay layer, may be null
+   * @param useAsBase true to draw the overlay under the portrait
+   * @param clipImage true to clip the background and portrait to the mask
+   * @return premultiplied ARGB pixels, width * height long, borrowed from the {@link
+   *     RasterBufferPool} so they can be returned to it once used
+   */
+  public static int[] compose(
+      int width,
+      int height,
+      Color backgroundColor,
+      Layer background,
+      Layer portrait,
+      Layer mask,
+      Layer overlay,
+      boolean useAsBase,
+      boolean clipImage) {
+    int[] tokenPixels = RasterBufferPool.borrowPixels(width * height);
+    int backgroundArgb = toPremultipliedArgb(backgroundColor);
+
+    if (!clipImage || mask == null || mask.getImage() == null) {
+      Arrays.fill(tokenPixels, backgroundArgb);
+
+      // The overlay group sits behind the background and portrait when used as the base
+      if (useAsBase)
+        drawOver(tokenPixels, getLayerPixels(OVERLAY, overlay, null, width, height), width);
+      drawOver(tokenPixels, getLayerPixels(BACKGROUND, background, null, width, height), width);
+      drawOver(tokenPixels, getLayerPixels(PORTRAIT, portrait, null, width, height), width);
+      if (!useAsBase)
+        drawOver(tokenPixels, getLayerPixels(OVERLAY, overlay, null, width, height), width);
+
+      return tokenPixels;
+    }
+
+    // The background is filled with the background color before it is clipped
+    int[] clippedBackground =
+        getCachedPixels(
+            CLIPPED_BACKGROUND,
+            Arrays.asList(width, height, backgroundArgb, background, mask),
+            () -> {
+              int[] pixels = new int[width * height];
+              Arrays.fill(pixels, backgroundArgb);
+              drawOver(pixels, getLayerPixels(BACKGROUND, background, null, width, height), width);
+              applyMask(pixels, getMaskPixels(mask, width, height), width, height);
+
+              return pixels;
+            });
+    System.arraycopy(clippedBackground, 0, tokenPixels, 0, tokenPixels.length);
+
+    if (useAsBase)
+      drawOver(tokenPixels, getLayerPixels(OVERLAY, overlay, null, width, height), width);
+    drawOver(tokenPixels, getLayerPixels(PORTRAIT, portrait, mask, width, height), width);
+    if (!useAsBase)
+      drawOver(tokenPixels, getLayerPixels(OVERLAY, overlay, null, width, height), width);
+
+    return tokenPixels;
+  }
+
+  /**
+   * The bounds of everything a clipped token can show: the background and portrait only show where
+   * the mask isn't opaque and the overlay only where it isn't transparent. Whatever the portrait
+   * and background are, every visible pixel of the token lies within these bounds. They only depend
+   * on the mask, overlay and token size so they are cached.
+   *
+   * @param width the token width in pixels
+   * @param height the token height in pixels
+   * @param mask the mask layer
+   * @param overlay the overlay layer, may be null
+   * @return {minX, minY, maxX, maxY} (inclusive), or null if nothing can be visible
+   */
+  public static int[] getClipBounds(int width, int height, Layer mask, Layer overlay) {
+    // Opacity only scales the overlay, any visible overlay pixel counts
+    Layer opaqueOverlay = null;
+    if (overlay != null && overlay.getImage() != null)
+      opaqueOverlay = new Layer(overlay.getImage(), overlay.getTransform(), 1, overlay.getClip());
+
+    List<Object> key = Arrays.asList(width, height, mask, opaqueOverlay);
+    synchronized (clipBoundsCache) {
+      if (clipBoundsCache.containsKey(key)) return copy(clipBoundsCache.get(key));
+    }
+
+    int[] maskPixels = RasterBufferPool.borrowPixels(width * height);
+    renderLayer(mask, maskPixels, width);
+
+    int[] overlayPixels = null;
+    if (opaqueOverlay != null) {
+      overlayPixels = RasterBufferPool.borrowPixels(width * height);
+      renderLayer(opaqueOverlay, overlayPixels, width);
+    }
+
+    int minX = width, minY = height, maxX = -1, maxY = -1;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0, i = y * width; x < width; x++, i++) {
+        boolean visible =
+            (maskPixels[i] >>> 24) != 255 || (overlayPixels != null && overlayPixels[i] != 0);
+
+        if (visible) {
+          minX = Math.min(minX, x);
+          maxX = Math.max(maxX, x);
+          minY = Math.min(minY, y);
+          maxY = y;
+        }
+      }
+    }
+
+    RasterBufferPool.returnPixels(maskPixels);
+    if (overlayPixels != null) RasterBufferPool.returnPixels(overlayPixels);
+
+    int[] bounds = maxX < 0 ? null : new int[] {minX, minY, maxX, maxY};
+    synchronized (clipBoundsCache) {
+      clipBoundsCache.put(key, bounds);
+    }
+
+    return copy(bounds);
+  }
+
+  /** Drop every cached source raster, intermediate layer and clip bounds. */
+  public static void clearCache() {
+    synchronized (rasterCache) {
+      rasterCache.clear();
+      cachedPixels = 0;
+    }
+
+    synchronized (clipBoundsCache) {
+      clipBoundsCache.clear();
+    }
+
+    synchronized (layerCache) {
+      layerCache.clear();
+    }
+  }
+
+  private static int[] copy(int[] bounds) {
+    return bounds == null ? null : bounds.clone();
+  }
+
+  /*
+   * A layer rendered on its own at the token size, clipped to the mask if there is one. Null if the
+   * layer doesn't draw anything.
+   */
+  private static int[] getLayerPixels(String name, Layer layer, Layer mask, int width, int height) {
+    if (layer == null || layer.getImage() == null || layer.getOpacity() == 0) return null;
+
+    return getCachedPixels(
+        name,
+        Arrays.asList(width, height, layer, mask),
+        () -> {
+          int[] pixels = new int[width * height];
+          renderLayer(layer, pixels, width);
+          if (mask != null) applyMask(pixels, getMaskPixels(mask, width, height), width, height);
+
+          return pixels;
+        });
+  }
+
+  private static int[] getMaskPixels(Layer mask, int width, int height) {
+    return getCachedPixels(
+        MASK,
+        Arrays.asList(width, height, mask),
+        () -> {
+          int[] pixels = new int[width * height];
+          renderLayer(mask, pixels, width);
+
+          return pixels;
+        });
+  }
+
+  /*
+   * Intermediates are kept until the layers they were rendered from change. Cached pixels are only
+   * ever read, a render on another thread may still be using a replaced entry.
+   */
+  private static int[] getCachedPixels(String name, List<Object> key, Supplier<int[]> render) {
+    synchronized (layerCache) {
+      int[] pixels = getLayerSlots(name).get(key);
+      if (pixels != null) return pixels;
+    }
+
+    int[] pixels = render.get();
+    synchronized (layerCache) {
+      getLayerSlots(name).put(key, pixels);
+    }
+
+    return pixels;
+  }
+
+  private static Map<List<Object>, int[]> getLayerSlots(String name) {
+    return layerCache.computeIfAbsent(
+        name,
+        k ->
+            new LinkedHashMap<List<Object>, int[]>(4, 0.75f, true) {
+              private static final long serialVersionUID = 6305127940325894012L;
+
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<List<Object>, int[]> eldest) {
+                return size() > LAYER_SLOTS;
+              }
+            });
+  }
+
+  private static void drawOver(int[] tokenPixels, int[] layerPixels, int width) {
+    if (layerPixels == null) return;
+
+    RasterExecutor.forEachRowBand(
+        width,
+        tokenPixels.length / width,
+        (fromRow, toRow) ->
+            RasterKernels.get().srcOver(tokenPixels, layerPixels, fromRow * width, toRow * width));
+  }
+
+  private static void applyMask(int[] pixels, int[] maskPixels, int width, int height) {
+    RasterExecutor.forEachRowBand(
+        width,
+        height,
+        (fromRow, toRow) ->
+            RasterKernels.get().mask(pixels, maskPixels, fromRow * width, toRow * width));
+  }
+
+  /*
+   * Sample the layer at the center of every token pixel, anything the layer doesn't cover or is
+   * outside its clip is transparent
+   */
+  private static void renderLayer(Layer layer, int[] layerPixels, int width) {
+    int height = layerPixels.length / width;
+
+    AffineTransform transform = layer.getTransform();
+    Raster source = getRaster(layer.getImage(), transform);
+
+    AffineTransform inverse;
+    try {
+      inverse = transform.createInverse();
+    } catch (NoninvertibleTransformException e) {
+      // Scaled down to nothing
+      Arrays.fill(layerPixels, 0);
+      return;
+    }
+
+    int opacity = (int) Math.round(layer.getOpacity() * 256);
+    double stepU = inverse.getScaleX();
+    double stepV = inverse.getShearY();
+
+    // The pixels with their centers inside the clip
+    int minX = 0, minY = 0, maxX = width, maxY = height;
+    Rectangle2D clip = layer.getClip();
+    if (clip != null) {
+      minX = clamp((int) Math.ceil(clip.getMinX() - 0.5), 0, width);
+      minY = clamp((int) Math.ceil(clip.getMinY() - 0.5), 0, height);
+      maxX = clamp((int) Math.ceil(clip.getMaxX() - 0.5), minX, width);
+      maxY = clamp((int) Math.ceil(clip.getMaxY() - 0.5), minY, height);
+    }
+    int fromX = minX, fromY = minY, toX = maxX, toY = maxY;
+
+    RasterExecutor.forEachRowBand(
+        width,
+        height,
+        (fromRow, toRow) -> {
+          for (int y = fromRow; y < toRow; y++) {
+            int row = y * width;
+
+            if (y < fromY || y >= toY) {
+              Arrays.fill(layerPixels, row, row + width, 0);
+              continue;
+            }
+
+            Arrays.fill(layerPixels, row, row + fromX, 0);
+            Arrays.fill(layerPixels, row + toX, row + width, 0);
+
+            double u =
+                inverse.getScaleX() * (fromX + 0.5)
+                    + inverse.getShearX() * (y + 0.5)
+                    + inverse.getTranslateX()
+                    - 0.5;
+            double v =
+                inverse.getShearY() * (fromX + 0.5)
+                    + inverse.getScaleY() * (y + 0.5)
+                    + inverse.getTranslateY()
+                    - 0.5;
+
+            for (int x = fromX, i = row + fromX; x < toX; x++, i++) {
+              layerPixels[i] = sample(source, u, v, opacity);
+              u += stepU;
+              v += stepV;
+            }
+          }
+        });
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  /*
+   * Bilinear sample of premultiplied pixels, pixels outside the raster are transparent so layer
+   * edges are anti-aliased. Opacity is out of 256.
+   */
+  private static int sample(Raster source, double u, double v, int opacity) {
+    if (u <= -1 || v <= -1 || u >= source.width || v >= source.height) return 0;
+
+    int x0 = (int) Math.floor(u);
+    int y0 = (int) Math.floor(v);
+    int fx = (int) ((u - x0) * 256);
+    int fy = (int) ((v - y0) * 256);
+
+    int p00 = source.getPixel(x0, y0);
+    int p10 = source.getPixel(x0 + 1, y0);
+    int p01 = source.getPixel(x0, y0 + 1);
+    int p11 = source.getPixel(x0 + 1, y0 + 1);
+    if ((p00 | p10 | p01 | p11) == 0) return 0;
+
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 8) {
+      int top = ((p00 >>> shift) & 0xff) * (256 - fx) + ((p10 >>> shift) & 0xff) * fx;
+      int bottom = ((p01 >>> shift) & 0xff) * (256 - fx) + ((p11 >>> shift) & 0xff) * fx;
+      int channel = (top * (256 - fy) + bottom * fy + (1 << 15)) >>> 16;
+
+      result |= ((channel * opacity + 128) >>> 8) << shift;
+    }
+
+    return result;
+  }
+
+  /*
+   * The premultiplied source raster for an image drawn with the transform. When the image is drawn
+   * at half size or less it is shrunk by a power of two first and the transform is adjusted to
+   * match.
+   */
+  private static Raster getRaster(Image image, AffineTransform transform) {
+    int imageWidth = (int) image.getWidth();
+    int imageHeight = (int) image.getHeight();
+
+    int width =
+        imageWidth >> getShrinkLevel(Math.hypot(transform.getScaleX(), transform.getShearY()));
+    int height =
+        imageHeight >> getShrinkLevel(Math.hypot(transform.getShearX(), transform.getScaleY()));
+    width = Math.max(width, 1);
+    height = Math.max(height, 1);
+
+    if (width != imageWidth || height != imageHeight)
+      transform.scale((double) imageWidth / width, (double) imageHeight / height);
+
+    RasterKey key = new RasterKey(image, width, height);
+    synchronized (rasterCache) {
+      Raster raster = rasterCache.get(key);
+      if (raster != null) return raster;
+    }
+
+    int[] pixels = new int[imageWidth * imageHeight];
+    RasterExecutor.readPixels(image, pixels, imageWidth, imageHeight);
+
+    if (width != imageWidth || height != imageHeight)
+      pixels = ImageResampler.resample(pixels, imageWidth, imageHeight, width, height);
+
+    int[] premultiplied = pixels;
+    int rowWidth = width;
+    RasterExecutor.forEachRowBand(
+        width,
+        height,
+        (fromRow, toRow) -> {
+          for (int i = fromRow * rowWidth; i < toRow * rowWidth; i++)
+            premultiplied[i] = RasterKernels.premultiply(premultiplied[i]);
+        });
+
+    Raster raster = new Raster(premultiplied, width, height);
+    cache(key, raster);
+
+    return raster;
+  }
+
+  /*
+   * How many times the image can be halved and still be drawn at least at its own size
+   */
+  static int getShrinkLevel(double scale) {
+    int level = 0;
+    while (scale > 0 && scale <= 0.5 && level < 30) {
+      scale *= 2;
+      level++;
+    }
+
+    return level;
+  }
+
+  private static void cache(RasterKey key, Raster raster) {
+    long pixels = (long) raster.width * raster.height;
+    if (pixels > MAX_CACHED_PIXELS) return;
+
+    synchronized (rasterCache) {
+      Raster previous = rasterCache.put(key, raster);
+      if (previous != null) cachedPixels -= (long) previous.width * previous.height;
+      cachedPixels += pixels;
+
+      Iterator<Map.Entry<RasterKey, Raster>> iterator = rasterCache.entrySet().iterator();
+      while (cachedPixels > MAX_CACHED_PIXELS && iterator.hasNext()) {
+        Raster eldest = iterator.next().getValue();
+        if (eldest == raster) continue;
+
+        cachedPixels -= (long) eldest.width * eldest.height;
+        iterator.remove();
+      }
+    }
+  }
+
+  private static int toPremultipliedArgb(Color color) {
+    if (color == null) return 0;
+
+    int argb =
+        ((int) Math.round(color.getOpacity() * 255) << 24)
+            | ((int) Math.round(color.getRed() * 255) << 16)
+            | ((int) Math.round(color.getGreen() * 255) << 8)
+            | (int) Math.round(color.getBlue() * 255);
+
+    return RasterKernels.premultiply(argb);
+  }
+
+  private static class Raster {
+    final int[] pixels;
+    final int width, height;
+
+    Raster(int[] pixels, int width, int height) {
+      this.pixels = pixels;
+      this.width = width;
+      this.height = height;
+    }
+
+    int getPixel(int x, int y) {
+      if (x < 0 || y < 0 || x >= width || y >= height) return 0;
+
+      return pixels[y * width + x];
+    }
+  }
+
+  /*
+   * Images are compared by identity, a new image is always a new raster
+   */
+  private static class RasterKey {
+    final Image image;
+    final int width, height;
+
+    RasterKey(Image image, int width, int height) {
+      this.image = image;
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof RasterKey)) return false;
+
+      RasterKey other = (RasterKey) obj;
+      return image == other.image && width == other.width && height == other.height;
+    }
+
+    @Override
+    public int hashCode() {
+      return (System.identityHashCode(image) * 31 + width) * 31 + height;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The auto-crop bounds scan inward from each edge, they must be the same as a scan of every pixel.
+ */
+public class ImageUtilTest {
+  private static final int RANDOM_IMAGES = 500;
+
+  @Test
+  public void fullyTransparentImageHasNoBounds() {
+    for (int[] size : new int[][] {{1, 1}, {1, 40}, {40, 1}, {37, 23}, {1024, 1024}}) {
+      // Color without any alpha is still transparent
+      int[] pixels = new int[size[0] * size[1]];
+      for (int i = 0; i < pixels.length; i++) pixels[i] = i % 2 == 0 ? 0 : 0x00ffffff;
+
+      assertNull(size[0] + "x" + size[1], ImageUtil.getOpaqueBounds(pixels, size[0], size[1]));
+    }
+  }
+
+  @Test
+  public void singlePixelOnEachEdge() {
+    int width = 37, height = 23;
+
+    for (int x = 0; x < width; x++) {
+      assertSinglePixel(width, height, x, 0);
+      assertSinglePixel(width, height, x, height - 1);
+    }
+
+    for (int y = 0; y < height; y++) {
+      assertSinglePixel(width, height, 0, y);
+      assertSinglePixel(width, height, width - 1, y);
+    }
+  }
+
+  @Test
+  public void onePixelWideImage() {
+    Random random = new Random(0x1D1D);
+
+    for (int height = 1; height < 50; height++) {
+      for (int i = 0; i < 10; i++) {
+        int[] pixels = createPixels(random, 1, height, random.nextDouble());
+        assertBounds(pixels, 1, height);
+      }
+    }
+
+    // And one pixel high
+    for (int width = 1; width < 50; width++) {
+      int[] pixels = createPixels(random, width, 1, random.nextDouble());
+      assertBounds(pixels, width, 1);
+    }
+  }
+
+  @Test
+  public void randomImagesMatchFullScan() {
+    Random random = new Random(0xB0B0);
+
+    for (int i = 0; i < RANDOM_IMAGES; i++) {
+      int width = 1 + random.nextInt(200);
+      int height = 1 + random.nextInt(200);
+
+      // Mostly sparse so the edges are found at different depths
+      double density = random.nextBoolean() ? random.nextDouble() * 0.01 : random.nextDouble();
+      assertBounds(createPixels(random, width, height, density), width, height);
+    }
+  }
+
+  @Test
+  public void regionMatchesFullScan() {
+    Random random = new Random(0x5E61);
+
+    for (int i = 0; i < RANDOM_IMAGES; i++) {
+      int width = 1 + random.nextInt(200);
+      int height = 1 + random.nextInt(200);
+      int[] pixels = createPixels(random, width, height, random.nextDouble() * 0.01);
+
+      int[] expected = scanBounds(pixels, width, height);
+      if (expected == null) continue;
+
+      // Any region holding every visible pixel gives the same bounds
+      int[] region = {
+        random.nextInt(expected[0] + 1),
+        random.nextInt(expected[1] + 1),
+        expected[2] + random.nextInt(width - expected[2]),
+        expected[3] + random.nextInt(height - expected[3])
+      };
+
+      assertArrayEquals(expected, ImageUtil.getOpaqueBounds(pixels, width, region));
+    }
+  }
+
+  @Test
+  public void parallelBandsMatchFullScan() {
+    Random random = new Random(0xBA4D);
+
+    // Large enough for the rows between the first and last visible row to be split into bands
+    int width = 1024, height = 768;
+    assertTrue(width * (height - 2) >= RasterExecutor.PARALLEL_THRESHOLD);
+
+    for (int i = 0; i < 50; i++) {
+      // The columns that widen the bounds are put in the middle rows, so the bands have to find
+      // them and their results have to be merged
+      int[] pixels = new int[width * height];
+      pixels[random.nextInt(width)] = 0xff000000;
+      pixels[(height - 1) * width + random.nextInt(width)] = 0xff000000;
+
+      for (int points = 1 + random.nextInt(8); points > 0; points--) {
+        int x = random.nextInt(width);
+        int y = 1 + random.nextInt(height - 2);
+        pixels[y * width + x] = (1 + random.nextInt(255)) << 24;
+      }
+
+      assertBounds(pixels, width, height);
+    }
+  }
+
+  private static void assertSinglePixel(int width, int height, int x, int y) {
+    int[] pixels = new int[width * height];
+    pixels[y * width + x] = 0x01000000;
+
+    assertArrayEquals(
+        x + "," + y, new int[] {x, y, x, y}, ImageUtil.getOpaqueBounds(pixels, width, height));
+  }
+
+  private static void assertBounds(int[] pixels, int width, int height) {
+    int[] expected = scanBounds(pixels, width, height);
+    int[] bounds = ImageUtil.getOpaqueBounds(pixels, width, height);
+
+    if (expected == null) assertNull(width + "x" + height, bounds);
+    else assertArrayEquals(width + "x" + height, expected, bounds);
+  }
+
+  /*
+   * Every pixel with any alpha is visible, transparent pixels may still have color
+   */
+  private static int[] createPixels(Random random, int width, int height, double density) {
+    int[] pixels = new int[width * height];
+
+    for (int i = 0; i < pixels.length; i++) {
+      if (random.nextDouble() < density) pixels[i] = (1 + random.nextInt(255)) << 24;
+      else pixels[i] = random.nextInt() & 0xffffff;
+    }
+
+    return pixels;
+  }
+
+  private static int[] scanBounds(int[] pixels, int width, int height) {
+    int minX = width, minY = height, maxX = -1, maxY = -1;
+
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        if ((pixels[y * width + x] >>> 24) != 0) {
+          minX = Math.min(minX, x);
+          minY = Math.min(minY, y);
+          maxX = Math.max(maxX, x);
+          maxY = Math.max(maxY, y);
+        }
+      }
+    }
+
+    return maxX < 0 ? null : new int[] {minX, minY, maxX, maxY};
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The packed kernels must give bit-for-bit the same results as the scalar reference kernels, on
+ * random pixels and on every alpha and channel edge case.
+ */
+public class RasterKernelsTest {
+  private static final int RANDOM_PIXELS = 64 * 1024;
+
+  // Transparent, opaque, saturated channels, pure and near magenta
+  private static final int[] EDGE_CASES = {
+    0x00000000,
+    0xffffffff,
+    0xff000000,
+    0x00ffffff,
+    0xffff0000,
+    0xff00ff00,
+    0xff0000ff,
+    0xffff00ff,
+    0x00ff00ff,
+    0x80ff00ff,
+    0xfffe00ff,
+    0xffff01ff,
+    0xfffe01fd,
+    0x01010101,
+    0x01ffffff,
+    0xfe000000,
+    0x7f7f7f7f,
+    0x80808080
+  };
+
+  @Test
+  public void multiply255IsExactlyRounded() {
+    for (int a = 0; a < 256; a++)
+      for (int b = 0; b < 256; b++)
+        assertEquals(a + " * " + b, Math.round(a * b / 255.0), RasterKernels.multiply255(a, b));
+  }
+
+  @Test
+  public void premultiplyIsExactlyRounded() {
+    for (int alpha = 0; alpha < 256; alpha++) {
+      for (int channel = 0; channel < 256; channel++) {
+        int argb = (alpha << 24) | (channel << 16) | ((255 - channel) << 8) | channel;
+        int premultiplied = RasterKernels.premultiply(argb);
+
+        assertEquals(alpha, premultiplied >>> 24);
+        assertEquals(Math.round(channel * alpha / 255.0), (premultiplied >> 16) & 0xff);
+        assertEquals(Math.round((255 - channel) * alpha / 255.0), (premultiplied >> 8) & 0xff);
+        assertEquals(Math.round(channel * alpha / 255.0), premultiplied & 0xff);
+      }
+    }
+  }
+
+  @Test
+  public void keyMagentaMatchesScalar() {
+    int[] pixels = createPixels(new Random(0x70C3));
+    int[] maskPixels = createPixels(new Random(0x5EED));
+
+    for (int fudge : new int[] {0, 1, 64, 127, 254, 255}) {
+      int[] scalarPixels = pixels.clone();
+      int[] scalarMask = maskPixels.clone();
+      int[] packedPixels = pixels.clone();
+      int[] packedMask = maskPixels.clone();
+
+      RasterKernels.SCALAR.keyMagenta(scalarPixels, scalarMask, fudge, 0, pixels.length);
+      RasterKernels.PACKED.keyMagenta(packedPixels, packedMask, fudge, 0, pixels.length);
+
+      assertArrayEquals("fudge " + fudge, scalarPixels, packedPixels);
+      assertArrayEquals("fudge " + fudge, scalarMask, packedMask);
+    }
+  }
+
+  @Test
+  public void keyMagentaMatchesScalarOnEveryColor() {
+    // Every red & blue pair with a few greens, where the magenta tests branch
+    int[] pixels = new int[256 * 256 * 4];
+    int[] greens = {0, 1, 128, 255};
+    for (int i = 0; i < pixels.length; i++)
+      pixels[i] = 0xff000000 | ((i & 0xff) << 16) | (greens[i >>> 16] << 8) | ((i >>> 8) & 0xff);
+
+    for (int fudge : new int[] {0, 1, 64, 255}) {
+      int[] scalarPixels = pixels.clone();
+      int[] scalarMask = new int[pixels.length];
+      int[] packedPixels = pixels.clone();
+      int[] packedMask = new int[pixels.length];
+
+      RasterKernels.SCALAR.keyMagenta(scalarPixels, scalarMask, fudge, 0, pixels.length);
+      RasterKernels.PACKED.keyMagenta(packedPixels, packedMask, fudge, 0, pixels.length);
+
+      assertArrayEquals("fudge " + fudge, scalarPixels, packedPixels);
+      assertArrayEquals("fudge " + fudge, scalarMask, packedMask);
+    }
+  }
+
+  @Test
+  public void clipMatchesScalar() {
+    int[] pixels = createPixels(new Random(0x70C3));
+    int[] maskPixels = createPixels(new Random(0x5EED));
+
+    assertClipMatches(pixels, maskPixels);
+    assertClipMatches(sweepPixels(false), sweepMasks());
+  }
+
+  @Test
+  public void maskMatchesScalar() {
+    int[] pixels = premultiply(createPixels(new Random(0x70C3)));
+    int[] maskPixels = createPixels(new Random(0x5EED));
+
+    assertMaskMatches(pixels, maskPixels);
+    assertMaskMatches(sweepPixels(true), sweepMasks());
+  }
+
+  @Test
+  public void srcOverMatchesScalar() {
+    int[] dstPixels = premultiply(createPixels(new Random(0x70C3)));
+    int[] srcPixels = premultiply(createPixels(new Random(0x5EED)));
+
+    assertSrcOverMatches(dstPixels, srcPixels);
+    assertSrcOverMatches(sweepPixels(true), premultiply(sweepMasks()));
+  }
+
+  @Test
+  public void rangesAreRespected() {
+    int[] pixels = premultiply(createPixels(new Random(0x70C3)));
+    int[] srcPixels = premultiply(createPixels(new Random(0x5EED)));
+    int from = 17, to = pixels.length - 31;
+
+    for (RasterKernels kernels : new RasterKernels[] {RasterKernels.SCALAR, RasterKernels.PACKED}) {
+      int[] dstPixels = pixels.clone();
+      kernels.srcOver(dstPixels, srcPixels, from, to);
+
+      for (int i = 0; i < from; i++) assertEquals(kernels.getName(), pixels[i], dstPixels[i]);
+      for (int i = to; i < pixels.length; i++)
+        assertEquals(kernels.getName(), pixels[i], dstPixels[i]);
+    }
+  }
+
+  private static void assertClipMatches(int[] pixels, int[] maskPixels) {
+    int[] scalarPixels = pixels.clone();
+    int[] packedPixels = pixels.clone();
+
+    RasterKernels.SCALAR.clip(scalarPixels, maskPixels, 0, pixels.length);
+    RasterKernels.PACKED.clip(packedPixels, maskPixels, 0, pixels.length);
+
+    assertArrayEquals(scalarPixels, packedPixels);
+  }
+
+  private static void assertMaskMatches(int[] pixels, int[] maskPixels) {
+    int[] scalarPixels = pixels.clone();
+    int[] packedPixels = pixels.clone();
+
+    RasterKernels.SCALAR.mask(scalarPixels, maskPixels, 0, pixels.length);
+    RasterKernels.PACKED.mask(packedPixels, maskPixels, 0, pixels.length);
+
+    assertArrayEquals(scalarPixels, packedPixels);
+  }
+
+  private static void assertSrcOverMatches(int[] dstPixels, int[] srcPixels) {
+    int[] scalarPixels = dstPixels.clone();
+    int[] packedPixels = dstPixels.clone();
+
+    RasterKernels.SCALAR.srcOver(scalarPixels, srcPixels, 0, dstPixels.length);
+    RasterKernels.PACKED.srcOver(packedPixels, srcPixels, 0, dstPixels.length);
+
+    assertArrayEquals(scalarPixels, packedPixels);
+  }
+
+  /*
+   * Random pixels with every edge case mixed in, a fifth are fully transparent or opaque
+   */
+  private static int[] createPixels(Random random) {
+    int[] pixels = new int[RANDOM_PIXELS];
+
+    for (int i = 0; i < pixels.length; i++) {
+      if (i % 7 == 0) pixels[i] = EDGE_CASES[(i / 7) % EDGE_CASES.length];
+      else if (i % 5 == 0)
+        pixels[i] = (random.nextBoolean() ? 0xff000000 : 0) | (random.nextInt() & 0xffffff);
+      else pixels[i] = random.nextInt();
+    }
+
+    return pixels;
+  }
+
+  /*
+   * Every alpha against every channel value, with the green channel empty or saturated
+   */
+  private static int[] sweepPixels(boolean premultiplied) {
+    int[] pixels = new int[256 * 256 * 2];
+
+    for (int i = 0; i < pixels.length; i++) {
+      int alpha = (i >>> 8) & 0xff;
+      int channel = i & 0xff;
+      if (premultiplied) channel = Math.min(channel, alpha);
+      int other = i < 256 * 256 ? 0 : premultiplied ? alpha : 255;
+
+      pixels[i] = (alpha << 24) | (channel << 16) | (other << 8) | channel;
+    }
+
+    return pixels;
+  }
+
+  /*
+   * Lined up with sweepPixels(), every pixel alpha meets every mask alpha
+   */
+  private static int[] sweepMasks() {
+    int[] maskPixels = new int[256 * 256 * 2];
+    for (int i = 0; i < maskPixels.length; i++)
+      maskPixels[i] = ((i * 31) & 0xff) << 24 | (i & 0xffffff);
+
+    return maskPixels;
+  }
+
+  private static int[] premultiply(int[] pixels) {
+    int[] premultiplied = new int[pixels.length];
+    for (int i = 0; i < pixels.length; i++) premultiplied[i] = RasterKernels.premultiply(pixels[i]);
+
+    return premultiplied;
+  }
+}
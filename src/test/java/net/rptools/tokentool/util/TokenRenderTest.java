@@ -0,0 +1,278 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * TokenTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.tokentool.util;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import javafx.application.Platform;
+import javafx.scene.Group;
+import javafx.scene.Scene;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.StackPane;
+import javafx.scene.paint.Color;
+import net.rptools.tokentool.model.TokenRenderSnapshot;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The software render of a token must match the scene graph snapshot it replaced: at most 1% of the
+ * pixels may differ by more than 16 in any channel. The crops can be a pixel apart where a layer
+ * sits at a fractional position, so the images are compared at every offset of up to a pixel.
+ *
+ * <p>Snapshots need the JavaFX toolkit, these tests are skipped where it can't start, eg without a
+ * display.
+ */
+public class TokenRenderTest {
+  private static final int TOLERANCE = 16;
+  private static final double MAX_DIFFERENT = 0.01;
+
+  private static final String IMAGE_DIR = "/net/rptools/tokentool/image/";
+  private static final Color BACKGROUND_COLOR = Color.web("#336699");
+
+  private static boolean toolkitStarted;
+
+  private StackPane compositeTokenPane;
+  private ImageView backgroundImageView, portraitImageView, maskImageView, overlayImageView;
+
+  @BeforeClass
+  public static void startToolkit() {
+    try {
+      Platform.startup(() -> {});
+      toolkitStarted = true;
+    } catch (IllegalStateException e) {
+      // Already started by another test
+      toolkitStarted = true;
+    } catch (RuntimeException | Error e) {
+      toolkitStarted = false;
+    }
+  }
+
+  @Before
+  public void createTokenPane() throws Exception {
+    Assume.assumeTrue("The JavaFX toolkit could not be started", toolkitStarted);
+
+    // The same layout as the token pane in TokenTool.fxml
+    onFxThread(
+        () -> {
+          backgroundImageView = new ImageView(loadImage("grid.png"));
+          backgroundImageView.setPreserveRatio(true);
+
+          portraitImageView = new ImageView(loadImage("creative_commons_portrait.png"));
+          portraitImageView.setPreserveRatio(true);
+          portraitImageView.setScaleX(0.65);
+          portraitImageView.setScaleY(0.65);
+          portraitImageView.setTranslateX(49);
+          portraitImageView.setTranslateY(128);
+
+          StackPane imagesStackPane = new StackPane(backgroundImageView, portraitImageView);
+          imagesStackPane.setPrefSize(571, 769);
+
+          ScrollPane portraitScrollPane = new ScrollPane(imagesStackPane);
+          portraitScrollPane.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
+          portraitScrollPane.setVbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
+
+          maskImageView = createOverlayView(loadImage("gear-chrome-mask.png"));
+          maskImageView.setVisible(false);
+          overlayImageView = createOverlayView(loadImage("gear-chrome-no-mask.png"));
+
+          compositeTokenPane =
+              new StackPane(
+                  portraitScrollPane, new Group(maskImageView, overlayImageView), new Pane());
+          new Scene(compositeTokenPane, 400, 500);
+          compositeTokenPane.applyCss();
+          compositeTokenPane.layout();
+
+          return null;
+        });
+  }
+
+  @Test
+  public void clippedTokenMatchesSnapshot() throws Exception {
+    assertRenderMatchesSnapshot(false, true);
+  }
+
+  @Test
+  public void overlayAsBaseMatchesSnapshot() throws Exception {
+    assertRenderMatchesSnapshot(true, true);
+  }
+
+  @Test
+  public void unclippedTokenMatchesSnapshot() throws Exception {
+    assertRenderMatchesSnapshot(false, false);
+  }
+
+  @Test
+  public void rotatedPortraitMatchesSnapshot() throws Exception {
+    onFxThread(
+        () -> {
+          portraitImageView.setRotate(30);
+          portraitImageView.setTranslateX(-120);
+
+          return null;
+        });
+
+    assertRenderMatchesSnapshot(false, true);
+  }
+
+  @Test
+  public void portraitOutsideViewportIsClipped() throws Exception {
+    // Most of the portrait is scrolled out of the viewport, the snapshot doesn't show that part
+    onFxThread(
+        () -> {
+          portraitImageView.setTranslateX(-300);
+          portraitImageView.setTranslateY(-350);
+
+          return null;
+        });
+
+    assertRenderMatchesSnapshot(false, true);
+  }
+
+  private void assertRenderMatchesSnapshot(boolean useAsBase, boolean clipImage) throws Exception {
+    Image[] images =
+        onFxThread(
+            () -> {
+              compositeTokenPane.layout();
+
+              TokenRenderSnapshot snapshot =
+                  ImageUtil.createRenderSnapshot(
+                      compositeTokenPane,
+                      backgroundImageView,
+                      BACKGROUND_COLOR,
+                      portraitImageView,
+                      maskImageView,
+                      overlayImageView,
+                      useAsBase,
+                      clipImage);
+              assertNotNull("No software render for these layers", snapshot);
+
+              Image reference =
+                  ImageUtil.snapshotPreview(
+                      compositeTokenPane,
+                      backgroundImageView,
+                      BACKGROUND_COLOR,
+                      portraitImageView,
+                      maskImageView,
+                      overlayImageView,
+                      useAsBase,
+                      clipImage);
+
+              return new Image[] {ImageUtil.renderToken(snapshot), reference};
+            });
+
+    assertMatches(images[0], images[1]);
+  }
+
+  private static void assertMatches(Image tokenImage, Image referenceImage) {
+    int width = (int) tokenImage.getWidth(), height = (int) tokenImage.getHeight();
+    int referenceWidth = (int) referenceImage.getWidth();
+    int referenceHeight = (int) referenceImage.getHeight();
+
+    assertTrue(
+        "Rendered token is "
+            + width
+            + "x"
+            + height
+            + ", the snapshot is "
+            + referenceWidth
+            + "x"
+            + referenceHeight,
+        Math.abs(width - referenceWidth) <= 1 && Math.abs(height - referenceHeight) <= 1);
+
+    int[] pixels = readPremultiplied(tokenImage);
+    int[] referencePixels = readPremultiplied(referenceImage);
+
+    double bestDifferent = 1;
+    int bestMaxDifference = 0;
+    for (int offsetY = -1; offsetY <= 1; offsetY++) {
+      for (int offsetX = -1; offsetX <= 1; offsetX++) {
+        int different = 0, compared = 0, maxDifference = 0;
+
+        for (int y = Math.max(0, -offsetY); y < Math.min(height, referenceHeight - offsetY); y++) {
+          for (int x = Math.max(0, -offsetX); x < Math.min(width, referenceWidth - offsetX); x++) {
+            int pixel = pixels[y * width + x];
+            int referencePixel = referencePixels[(y + offsetY) * referenceWidth + x + offsetX];
+
+            int difference = 0;
+            for (int shift = 0; shift < 32; shift += 8)
+              difference =
+                  Math.max(
+                      difference,
+                      Math.abs(((pixel >>> shift) & 0xff) - ((referencePixel >>> shift) & 0xff)));
+
+            if (difference > TOLERANCE) different++;
+            maxDifference = Math.max(maxDifference, difference);
+            compared++;
+          }
+        }
+
+        double differentFraction = compared == 0 ? 1 : (double) different / compared;
+        if (differentFraction < bestDifferent) {
+          bestDifferent = differentFraction;
+          bestMaxDifference = maxDifference;
+        }
+      }
+    }
+
+    assertTrue(
+        String.format(
+            "%.2f%% of pixels differ by more than %d, by at most %d",
+            bestDifferent * 100, TOLERANCE, bestMaxDifference),
+        bestDifferent <= MAX_DIFFERENT);
+  }
+
+  private static ImageView createOverlayView(Image image) {
+    ImageView imageView = new ImageView(image);
+    imageView.setFitWidth(256);
+    imageView.setFitHeight(256);
+    imageView.setLayoutX(1);
+    imageView.setLayoutY(1);
+    imageView.setPreserveRatio(true);
+    imageView.setMouseTransparent(true);
+
+    return imageView;
+  }
+
+  private static Image loadImage(String name) {
+    return new Image(TokenRenderTest.class.getResource(IMAGE_DIR + name).toString());
+  }
+
+  private static int[] readPremultiplied(Image image) {
+    int width = (int) image.getWidth(), height = (int) image.getHeight();
+    int[] pixels = new int[width * height];
+    image
+        .getPixelReader()
+        .getPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), pixels, 0, width);
+
+    return pixels;
+  }
+
+  private static <T> T onFxThread(Callable<T> callable) throws Exception {
+    FutureTask<T> task = new FutureTask<>(callable);
+    Platform.runLater(task);
+
+    return task.get(30, TimeUnit.SECONDS);
+  }
+}